@@ -0,0 +1,18 @@
+package simpledb.buffer;
+
+/**
+ * A hint, given when a block is pinned, about how the
+ * block is being accessed.
+ * Blocks pinned as part of a sequential scan or of a temporary
+ * table are usually not needed again soon, and so they are
+ * read into a small ring of buffers instead of competing with
+ * the rest of the pool.
+ */
+public enum AccessPattern {
+   /** The block is accessed directly, e.g. by an index lookup. */
+   RANDOM,
+   /** The block is the next one of a scan through its file. */
+   SEQUENTIAL,
+   /** The block belongs to a temporary table. */
+   TEMP
+}
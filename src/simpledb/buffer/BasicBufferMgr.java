@@ -1,19 +1,55 @@
 package simpledb.buffer;
 
 import simpledb.file.*;
+import java.util.*;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
+ * The manager keeps a map from each assigned block to its buffer,
+ * and a free list of the unpinned buffers that should be reused first,
+ * namely the buffers that have never been assigned.
+ * When neither has a usable buffer, the manager's
+ * {@link ReplacementPolicy replacement policy} chooses an unpinned buffer.
+ * <P>
+ * Blocks pinned with a {@link AccessPattern#SEQUENTIAL SEQUENTIAL} or
+ * {@link AccessPattern#TEMP TEMP} hint are kept in a small ring of buffers,
+ * which is recycled in first-in first-out order and is not seen by
+ * the replacement policy; thus a scan of a large file does not evict
+ * the rest of the pool.
+ * If every buffer of the ring is pinned, the ring borrows buffers
+ * from the pool, and returns them to the free list when they are unpinned.
+ * A block in the ring that is pinned with a {@link AccessPattern#RANDOM RANDOM}
+ * hint leaves the ring and is handled by the policy.
+ * <P>
+ * A prefetched block is also placed in the ring.
+ * Its buffer is reserved while the partition is locked,
+ * but the block is read without holding the lock;
+ * a pin of a block that is still loading waits as if
+ * no buffer were available.
+ * <P>
+ * A range of blocks can also be pinned with a single read.
+ * Each missing block of the range has a buffer reserved and pinned,
+ * which is not seen by the ring or the replacement policy until
+ * the read has finished.
  * @author Edward Sciore
  *
  */
 class BasicBufferMgr {
+   private static final int RING_FRACTION = 8;
+   
    private Buffer[] bufferpool;
+   private Map<Block,Buffer> bufferPoolMap;
+   private Set<Buffer> freeList;
+   private Set<Buffer> ring;
+   private int ringSize;
+   private ReplacementPolicy policy;
    private int numAvailable;
    
    /**
     * Creates a buffer manager having the specified number 
     * of buffer slots.
+    * One eighth of the buffers (but at least one) may be used
+    * as the ring for sequential access.
     * This constructor depends on both the {@link FileMgr} and
     * {@link simpledb.log.LogMgr LogMgr} objects 
     * that it gets from the class
@@ -23,12 +59,20 @@ class BasicBufferMgr {
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffs the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
     */
-   BasicBufferMgr(int numbuffs) {
+   BasicBufferMgr(int numbuffs, String policyname) {
       bufferpool = new Buffer[numbuffs];
+      bufferPoolMap = new HashMap<Block,Buffer>(2 * numbuffs);
+      freeList = new LinkedHashSet<Buffer>(2 * numbuffs);
+      ring = new LinkedHashSet<Buffer>();
+      ringSize = Math.max(1, numbuffs / RING_FRACTION);
       numAvailable = numbuffs;
-      for (int i=0; i<numbuffs; i++)
+      for (int i=0; i<numbuffs; i++) {
          bufferpool[i] = new Buffer();
+         freeList.add(bufferpool[i]);
+      }
+      policy = createPolicy(policyname);
    }
    
    /**
@@ -41,56 +85,230 @@ class BasicBufferMgr {
          buff.flush();
    }
    
+   /**
+    * Returns the blocks whose buffers are modified but not pinned.
+    * @return a list of dirty unpinned blocks
+    */
+   synchronized List<Block> dirtyUnpinnedBlocks() {
+      List<Block> result = new ArrayList<Block>();
+      for (Buffer buff : bufferpool)
+         if (buff.isModified() && !buff.isPinned())
+            result.add(buff.block());
+      return result;
+   }
+   
+   /**
+    * Adds the blocks of the buffers having logged changes that
+    * have not been written to disk to the specified dirty page table,
+    * together with their recovery LSNs.
+    * @param dpt the dirty page table
+    */
+   synchronized void addDirtyPages(Map<Block,Long> dpt) {
+      for (Buffer buff : bufferpool) {
+         long lsn = buff.recoveryLSN();
+         if (lsn >= 0)
+            dpt.put(buff.block(), lsn);
+      }
+   }
+   
+   /**
+    * Returns the buffer assigned to the specified block,
+    * provided that the buffer is modified but not pinned.
+    * The buffer stays unpinned, and so can be written to disk
+    * only while the partition remains locked.
+    * @param blk a reference to a disk block
+    * @return the dirty unpinned buffer, or null
+    */
+   synchronized Buffer dirtyUnpinnedBuffer(Block blk) {
+      Buffer buff = findExistingBuffer(blk);
+      if (buff == null || buff.isPinned() || !buff.isModified())
+         return null;
+      return buff;
+   }
+   
    /**
     * Pins a buffer to the specified block. 
     * If there is already a buffer assigned to that block
     * then that buffer is used;  
-    * otherwise, an unpinned buffer from the pool is chosen.
+    * otherwise, an unpinned buffer from the pool is chosen,
+    * taking the access pattern into account.
     * Returns a null value if there are no available buffers.
     * @param blk a reference to a disk block
+    * @param pattern how the block is being accessed
     * @return the pinned buffer
     */
-   synchronized Buffer pin(Block blk) {
+   synchronized Buffer pin(Block blk, AccessPattern pattern) {
+      boolean scan = (pattern != AccessPattern.RANDOM);
       Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
-         buff = chooseUnpinnedBuffer();
-         if (buff == null)
+      if (buff != null) {
+         if (buff.isLoading())
             return null;
-         buff.assignToBlock(blk);
+         policy.countPin(true);
+         if (!buff.isPinned())
+            numAvailable--;
+         buff.pin();
+         if (ring.contains(buff)) {
+            if (!scan) {
+               ring.remove(buff);
+               policy.pinned(buff, false);
+            }
+         }
+         else if (freeList.remove(buff))
+            track(buff, scan);
+         else
+            policy.pinned(buff, true);
+         return buff;
       }
-      if (!buff.isPinned())
-         numAvailable--;
+      buff = scan ? chooseRingBuffer() : null;
+      if (buff == null)
+         buff = chooseUnpinnedBuffer();
+      if (buff == null)
+         return null;
+      bufferPoolMap.remove(buff.block());
+      buff.assignToBlock(blk);
+      bufferPoolMap.put(blk, buff);
+      policy.countPin(false);
+      numAvailable--;
       buff.pin();
+      track(buff, scan);
       return buff;
    }
    
    /**
-    * Allocates a new block in the specified file, and
-    * pins a buffer to it. 
-    * Returns null (without allocating the block) if 
-    * there are no available buffers.
-    * @param filename the name of the file
-    * @param fmtr a pageformatter object, used to format the new block
-    * @return the pinned buffer
+    * Reserves and pins an unpinned buffer for a block
+    * that is about to be appended to its file.
+    * As with {@link #pinOrReserve(Block, AccessPattern)}, the buffer
+    * is loading until the caller has appended the block and called
+    * {@link #rangeLoaded(Buffer, boolean, AccessPattern)}.
+    * The block must not be assigned to a buffer.
+    * Returns null if no buffer is available.
+    * @param blk a reference to the new block
+    * @param pattern how the block is being accessed
+    * @return the pinned buffer, which is loading
+    */
+   synchronized Buffer reserveNew(Block blk, AccessPattern pattern) {
+      return reserve(blk, pattern);
+   }
+   
+   /**
+    * Returns the buffer assigned to the specified block, if any.
+    * The buffer may be loading.
+    * @param blk a reference to a disk block
+    * @return the assigned buffer, or null
+    */
+   synchronized Buffer assignedBuffer(Block blk) {
+      return findExistingBuffer(blk);
+   }
+   
+   /**
+    * Reserves an unpinned buffer for the specified block,
+    * so that the block can be prefetched.
+    * The buffer is taken from the free list or the replacement policy
+    * rather than from the ring, so that blocks prefetched earlier
+    * are not evicted before the scan reaches them;
+    * the ring returns the buffer to the free list once it is unpinned.
+    * To keep prefetching from taking over the pool, no buffer is
+    * reserved once the ring has grown to twice its size.
+    * The caller reads the block into the returned buffer
+    * and then calls {@link #prefetched(Buffer, boolean)}.
+    * Returns null if the block is already in the pool,
+    * or if no buffer is available.
+    * @param blk a reference to a disk block
+    * @return the reserved buffer, or null
     */
-   synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   synchronized Buffer reserveForPrefetch(Block blk) {
+      if (findExistingBuffer(blk) != null || ring.size() >= 2 * ringSize)
+         return null;
       Buffer buff = chooseUnpinnedBuffer();
       if (buff == null)
          return null;
-      buff.assignToNew(filename, fmtr);
+      bufferPoolMap.remove(buff.block());
+      buff.reserveFor(blk);
+      bufferPoolMap.put(blk, buff);
       numAvailable--;
-      buff.pin();
       return buff;
    }
    
+   /**
+    * Makes a buffer reserved by {@link #reserveForPrefetch(Block)}
+    * available again, once its block has been read.
+    * If the read failed, the buffer goes to the free list.
+    * @param buff the reserved buffer
+    * @param ok true if the block was read successfully
+    */
+   synchronized void prefetched(Buffer buff, boolean ok) {
+      numAvailable++;
+      if (ok) {
+         buff.loaded(true);
+         ring.add(buff);
+      }
+      else {
+         bufferPoolMap.remove(buff.block());
+         buff.loaded(false);
+         freeList.add(buff);
+      }
+   }
+   
+   /**
+    * Pins the buffer assigned to the specified block, if any;
+    * otherwise reserves and pins an unpinned buffer for the block
+    * without reading it, so that the caller can read a range
+    * of blocks with a single read.
+    * A reserved buffer is loading, and is not seen by the ring
+    * or the replacement policy until the caller has read the block
+    * and called {@link #rangeLoaded(Buffer, boolean, AccessPattern)}.
+    * Returns null if the block is still loading,
+    * or if no buffer is available.
+    * @param blk a reference to a disk block
+    * @param pattern how the block is being accessed
+    * @return the pinned buffer, which is loading if it was reserved
+    */
+   synchronized Buffer pinOrReserve(Block blk, AccessPattern pattern) {
+      if (findExistingBuffer(blk) != null)
+         return pin(blk, pattern);
+      Buffer buff = reserve(blk, pattern);
+      if (buff != null)
+         policy.countPin(false);
+      return buff;
+   }
+   
+   /**
+    * Finishes the pin of a buffer reserved by
+    * {@link #pinOrReserve(Block, AccessPattern)}, once its block has been read.
+    * If the read failed, the buffer is unpinned and goes to the free list.
+    * @param buff the reserved buffer
+    * @param ok true if the block was read successfully
+    * @param pattern how the block is being accessed
+    */
+   synchronized void rangeLoaded(Buffer buff, boolean ok, AccessPattern pattern) {
+      if (ok) {
+         buff.loaded(true);
+         track(buff, pattern != AccessPattern.RANDOM);
+      }
+      else {
+         bufferPoolMap.remove(buff.block());
+         buff.loaded(false);
+         buff.unpin();
+         numAvailable++;
+         freeList.add(buff);
+      }
+   }
+   
    /**
     * Unpins the specified buffer.
     * @param buff the buffer to be unpinned
     */
    synchronized void unpin(Buffer buff) {
       buff.unpin();
-      if (!buff.isPinned())
+      if (!buff.isPinned()) {
          numAvailable++;
+         if (!ring.contains(buff))
+            policy.unpinned(buff);
+         else if (ring.size() > ringSize) {
+            ring.remove(buff);
+            freeList.add(buff);
+         }
+      }
    }
    
    /**
@@ -101,19 +319,109 @@ class BasicBufferMgr {
       return numAvailable;
    }
    
+   /**
+    * Returns the number of pins that found their block
+    * already in the pool, as counted by the replacement policy.
+    * @return the number of buffer hits
+    */
+   synchronized long hits() {
+      return policy.hits();
+   }
+   
+   /**
+    * Returns the number of pins that had to read
+    * their block from disk, as counted by the replacement policy.
+    * @return the number of buffer misses
+    */
+   synchronized long misses() {
+      return policy.misses();
+   }
+   
    private Buffer findExistingBuffer(Block blk) {
-      for (Buffer buff : bufferpool) {
-         Block b = buff.block();
-         if (b != null && b.equals(blk))
-            return buff;
-      }
-      return null;
+      return bufferPoolMap.get(blk);
+   }
+   
+   /**
+    * Assigns an unpinned buffer to the specified block without
+    * reading it, marks the buffer as loading, and pins it.
+    * The buffer is not tracked by the ring or the replacement policy.
+    * @param blk a reference to a disk block
+    * @param pattern how the block is being accessed
+    * @return the reserved buffer, or null if every buffer is pinned
+    */
+   private Buffer reserve(Block blk, AccessPattern pattern) {
+      Buffer buff = (pattern != AccessPattern.RANDOM) ? chooseRingBuffer() : null;
+      if (buff == null)
+         buff = chooseUnpinnedBuffer();
+      if (buff == null)
+         return null;
+      bufferPoolMap.remove(buff.block());
+      buff.reserveFor(blk);
+      bufferPoolMap.put(blk, buff);
+      numAvailable--;
+      buff.pin();
+      return buff;
    }
    
+   /**
+    * Returns the first buffer on the free list, if any;
+    * otherwise asks the replacement policy to choose one.
+    * @return an unpinned buffer, or null if every buffer is pinned
+    */
    private Buffer chooseUnpinnedBuffer() {
-      for (Buffer buff : bufferpool)
-         if (!buff.isPinned())
+      Iterator<Buffer> iter = freeList.iterator();
+      if (iter.hasNext()) {
+         Buffer buff = iter.next();
+         iter.remove();
          return buff;
+      }
+      return policy.chooseUnpinnedBuffer();
+   }
+   
+   /**
+    * Returns the oldest unpinned buffer of the ring,
+    * removing it from the ring.
+    * Returns null if the ring is not yet full,
+    * or if all of its buffers are pinned.
+    * @return a buffer of the ring, or null
+    */
+   private Buffer chooseRingBuffer() {
+      if (ring.size() < ringSize)
+         return null;
+      Iterator<Buffer> iter = ring.iterator();
+      while (iter.hasNext()) {
+         Buffer buff = iter.next();
+         if (!buff.isPinned()) {
+            iter.remove();
+            return buff;
+         }
+      }
       return null;
    }
+   
+   /**
+    * Starts keeping track of a pinned buffer that is
+    * neither in the ring nor known to the replacement policy.
+    * @param buff the buffer
+    * @param scan true if the buffer belongs in the ring
+    */
+   private void track(Buffer buff, boolean scan) {
+      if (scan)
+         ring.add(buff);
+      else
+         policy.pinned(buff, false);
+   }
+   
+   private ReplacementPolicy createPolicy(String policyname) {
+      if (policyname.equals(BufferMgr.CLOCK))
+         return new ClockPolicy(bufferpool);
+      else if (policyname.equals(BufferMgr.LRU_K))
+         return new LRUKPolicy(2, bufferpool.length);
+      else if (policyname.equals(BufferMgr.TWO_Q))
+         return new TwoQueuePolicy(bufferpool.length);
+      else if (policyname.equals(BufferMgr.LRU))
+         return new LRUPolicy();
+      else
+         throw new RuntimeException("unknown buffer replacement policy " + policyname);
+   }
 }
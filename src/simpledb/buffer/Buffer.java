@@ -2,6 +2,7 @@ package simpledb.buffer;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.List;
 
 /**
  * An individual buffer.
@@ -11,6 +12,19 @@ import simpledb.file.*;
  * whether the contents of the page have been modified,
  * and if so, the id of the modifying transaction and
  * the LSN of the corresponding log record.
+ * A dirty buffer also keeps the LSN of the earliest log record
+ * that modified it since it was last written, which is its
+ * entry in the dirty page table of a checkpoint.
+ * The methods that modify the page are synchronized,
+ * so that a reader holding no lock on the block, such as a
+ * snapshot read, can read a value atomically by synchronizing
+ * on the buffer.
+ * Transactions that lock different records of the block
+ * can modify the page concurrently, and so the buffer keeps
+ * the largest LSN of their log records.
+ * A transaction also holds the buffer's lock while it logs a change
+ * and makes it, so that a checkpoint, which reads the recovery LSN
+ * under the lock, cannot see the log record without the change.
  * @author Edward Sciore
  */
 public class Buffer {
@@ -18,7 +32,11 @@ public class Buffer {
    private Block blk = null;
    private int pins = 0;
    private int modifiedBy = -1;  // negative means not modified
-   private int logSequenceNumber = -1; // negative means no corresponding log record
+   private long logSequenceNumber = -1; // negative means no corresponding log record
+   private volatile long recoveryLSN = -1; // the first log record since the page was written
+   private boolean loading = false;  // true while a prefetch is reading the block
+   private boolean writing = false;  // true while a copy of the page is being written
+   private long modifications = 0;   // the number of modifications, which stamps a copy
 
    /**
     * Creates a new buffer, wrapping a new 
@@ -60,6 +78,20 @@ public class Buffer {
       return contents.getString(offset);
    }
 
+   /**
+    * Compares the string value at the specified offset of the
+    * buffer's page with the specified string,
+    * without decoding the stored string if possible.
+    * @param offset the byte offset of the page
+    * @param val the string to compare with
+    * @return a negative integer, zero, or a positive integer as the stored
+    * string is less than, equal to, or greater than val
+    * @see simpledb.file.Page#compareString(int, String)
+    */
+   public int compareString(int offset, String val) {
+      return contents.compareString(offset, val);
+   }
+
    /**
     * Writes an integer to the specified offset of the
     * buffer's page.
@@ -74,10 +106,14 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setInt(int offset, int val, int txnum, int lsn) {
+   public synchronized void setInt(int offset, int val, int txnum, long lsn) {
       modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+      modifications++;
+      if (lsn >= 0) {
+         logSequenceNumber = Math.max(logSequenceNumber, lsn);
+         if (recoveryLSN < 0 || lsn < recoveryLSN)
+            recoveryLSN = lsn;
+      }
       contents.setInt(offset, val);
    }
 
@@ -95,10 +131,14 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setString(int offset, String val, int txnum, int lsn) {
+   public synchronized void setString(int offset, String val, int txnum, long lsn) {
       modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+      modifications++;
+      if (lsn >= 0) {
+         logSequenceNumber = Math.max(logSequenceNumber, lsn);
+         if (recoveryLSN < 0 || lsn < recoveryLSN)
+            recoveryLSN = lsn;
+      }
       contents.setString(offset, val);
    }
 
@@ -117,15 +157,31 @@ public class Buffer {
     * The method ensures that the corresponding log
     * record has been written to disk prior to writing
     * the page to disk.
+    * If a copy of the page is being written, the method first
+    * waits for that write, so that the copy cannot overwrite
+    * a newer version of the block, or a block the buffer is reassigned to.
     */
    void flush() {
+      awaitWrite();
       if (modifiedBy >= 0) {
          SimpleDB.logMgr().flush(logSequenceNumber);
          contents.write(blk);
          modifiedBy = -1;
+         recoveryLSN = -1;
       }
    }
 
+   /**
+    * Returns the LSN of the earliest log record that modified
+    * the page since it was last written to disk,
+    * or a negative value if the page has no unwritten logged changes.
+    * The method waits for a change that is being logged.
+    * @return the recovery LSN of the buffer
+    */
+   synchronized long recoveryLSN() {
+      return recoveryLSN;
+   }
+
    /**
     * Increases the buffer's pin count.
     */
@@ -149,6 +205,14 @@ public class Buffer {
       return pins > 0;
    }
 
+   /**
+    * Returns true if the buffer is dirty.
+    * @return true if the page differs from its disk block
+    */
+   boolean isModified() {
+      return modifiedBy >= 0;
+   }
+
    /**
     * Returns true if the buffer is dirty
     * due to a modification by the specified transaction.
@@ -174,17 +238,136 @@ public class Buffer {
    }
 
    /**
-    * Initializes the buffer's page according to the specified formatter,
-    * and appends the page to the specified file.
+    * Assigns the buffer to the specified block without reading it,
+    * so that the block can be read by {@link #readReserved()}
+    * while the buffer's partition is not locked.
     * If the buffer was dirty, then the contents
     * of the previous page are first written to disk.
-    * @param filename the name of the file
-    * @param fmtr a page formatter, used to initialize the page
+    * The buffer is marked as loading until {@link #loaded()} is called.
+    * @param b a reference to the data block
     */
-   void assignToNew(String filename, PageFormatter fmtr) {
+   void reserveFor(Block b) {
       flush();
-      fmtr.format(contents);
-      blk = contents.append(filename);
+      blk = b;
       pins = 0;
+      loading = true;
+   }
+
+   /**
+    * Reads the contents of the reserved block into the buffer's page.
+    */
+   void readReserved() {
+      contents.read(blk);
+   }
+
+   /**
+    * Formats the page of a buffer reserved for a new block,
+    * and appends the page to the block's file,
+    * provided that the block is still the next block of the file.
+    * @param fmtr the formatter used to initialize the page
+    * @return true if the block was appended
+    */
+   boolean appendReserved(PageFormatter fmtr) {
+      fmtr.format(contents);
+      return contents.appendAt(blk);
+   }
+
+   /**
+    * Reads the contents of the reserved blocks into the
+    * pages of the specified buffers, using a single read.
+    * The buffers must be reserved for consecutive blocks
+    * of the same file, in block order.
+    * @param buffs the reserved buffers
+    */
+   static void readReserved(List<Buffer> buffs) {
+      Page[] pages = new Page[buffs.size()];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = buffs.get(i).contents;
+      Block first = buffs.get(0).blk;
+      Page.readRange(first.fileName(), first.number(), pages);
+   }
+
+   /**
+    * Copies the page of the dirty buffer into the specified page,
+    * so that the copy can be written to disk without holding
+    * the lock of the buffer's partition.
+    * The buffer is marked as being written until
+    * {@link #endWrite(long, boolean)} is called.
+    * The buffer can still be pinned and modified meanwhile;
+    * it stays dirty if it is modified after the copy.
+    * The method is called while the partition is locked
+    * and the buffer is unpinned.
+    * @param copy the page that receives the copy
+    * @return a stamp identifying the copied version of the page
+    */
+   synchronized long beginWrite(Page copy) {
+      copy.copyFrom(contents);
+      writing = true;
+      return modifications;
+   }
+
+   /**
+    * Waits until no copy of the page is being written.
+    * A copy is started only while the buffer's partition is locked,
+    * so none is started while the caller holds that lock.
+    */
+   private synchronized void awaitWrite() {
+      boolean interrupted = false;
+      while (writing) {
+         try {
+            wait();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * Returns the LSN of the latest log record
+    * of a modification of the page.
+    * @return the LSN, or a negative value if there is none
+    */
+   synchronized long latestLSN() {
+      return logSequenceNumber;
+   }
+
+   /**
+    * Finishes the write of a copy made by {@link #beginWrite(Page)}.
+    * If the copy was written and the page has not been modified
+    * since the copy, then the buffer is no longer dirty.
+    * Threads waiting to flush the buffer are notified.
+    * @param stamp the stamp returned by beginWrite
+    * @param ok true if the copy was written to disk
+    */
+   synchronized void endWrite(long stamp, boolean ok) {
+      writing = false;
+      if (ok && stamp == modifications) {
+         modifiedBy = -1;
+         recoveryLSN = -1;
+      }
+      notifyAll();
+   }
+
+   /**
+    * Marks the buffer as no longer loading.
+    * If the read failed, the buffer is also detached from its block.
+    * @param ok true if the block was read successfully
+    */
+   void loaded(boolean ok) {
+      loading = false;
+      if (!ok)
+         blk = null;
+   }
+
+   /**
+    * Returns true if the buffer's block is still being read
+    * by a prefetch or a range read.
+    * @return true if the buffer is loading
+    */
+   boolean isLoading() {
+      return loading;
    }
-}
\ No newline at end of file
+}
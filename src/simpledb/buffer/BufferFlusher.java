@@ -0,0 +1,82 @@
+package simpledb.buffer;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * A background thread that writes dirty, unpinned buffers to disk,
+ * so that the buffer chosen for replacement is usually clean
+ * and a pin does not have to wait for a page write.
+ * Each round, the flusher writes the dirty unpinned buffers
+ * in block order, up to a fixed number of pages per second.
+ * Dirty buffers of consecutive blocks of a file
+ * are written together, using a single write.
+ * The pages are copied into the flusher's own pages and written
+ * from there, so that no partition is locked during the write.
+ * A failed write is logged, and is retried by the next round
+ * or by the pin that replaces the buffer.
+ */
+class BufferFlusher extends Thread {
+   private static final long INTERVAL = 100; // milliseconds per round
+   private static final int MAX_RUN = 16;    // blocks per write
+   
+   private static final Comparator<Block> BLOCK_ORDER = new Comparator<Block>() {
+      public int compare(Block b1, Block b2) {
+         int result = b1.fileName().compareTo(b2.fileName());
+         return (result != 0) ? result : Integer.compare(b1.number(), b2.number());
+      }
+   };
+   
+   private BufferMgr bufferMgr;
+   private int pagesPerRound;
+   private Page[] copies = new Page[MAX_RUN];
+   
+   /**
+    * Creates a flusher for the specified buffer manager.
+    * @param bufferMgr the buffer manager
+    * @param pagesPerSecond the maximum number of pages written per second
+    */
+   BufferFlusher(BufferMgr bufferMgr, int pagesPerSecond) {
+      super("buffer flusher");
+      this.bufferMgr = bufferMgr;
+      pagesPerRound = (int) Math.max(1, pagesPerSecond * INTERVAL / 1000);
+      setDaemon(true);
+      for (int i=0; i<MAX_RUN; i++)
+         copies[i] = new Page();
+   }
+   
+   public void run() {
+      while (true) {
+         try {
+            Thread.sleep(INTERVAL);
+            List<Block> blocks = bufferMgr.dirtyUnpinnedBlocks();
+            Collections.sort(blocks, BLOCK_ORDER);
+            int written = 0;
+            int i = 0;
+            while (i < blocks.size() && written < pagesPerRound) {
+               List<Block> run = new ArrayList<Block>();
+               run.add(blocks.get(i++));
+               while (i < blocks.size() && run.size() < MAX_RUN
+                      && written + run.size() < pagesPerRound
+                      && follows(blocks.get(i), run.get(run.size()-1)))
+                  run.add(blocks.get(i++));
+               written += bufferMgr.flushRun(run, copies);
+            }
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(RuntimeException e) {
+            SimpleDB.getLogger().log(Level.WARNING,
+                  "buffer flusher could not write dirty buffers", e);
+         }
+      }
+   }
+   
+   private boolean follows(Block blk, Block prev) {
+      return blk.fileName().equals(prev.fileName())
+            && blk.number() == prev.number() + 1;
+   }
+}
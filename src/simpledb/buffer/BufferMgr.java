@@ -1,105 +1,245 @@
 package simpledb.buffer;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.*;
 
 /**
  * The publicly-accessible buffer manager.
- * A buffer manager wraps a basic buffer manager, and
- * provides the same methods. The difference is that
- * the methods {@link #pin(Block) pin} and 
+ * A buffer manager divides its buffers into partitions,
+ * each of which is a basic buffer manager, and assigns
+ * each block to a partition according to its hash code.
+ * The methods {@link #pin(Block) pin} and
  * {@link #pinNew(String, PageFormatter) pinNew}
  * will never return null.
- * If no buffers are currently available, then the
- * calling thread will be placed on a waiting list.
- * The waiting threads are removed from the list when 
- * a buffer becomes available.
+ * If no buffers are currently available in the block's partition,
+ * then the calling thread will be placed on that partition's waiting list.
+ * The waiting threads are removed from the list when
+ * a buffer of the partition becomes available.
  * If a thread has been waiting for a buffer for an
  * excessive amount of time (currently, 10 seconds)
  * then a {@link BufferAbortException} is thrown.
+ * Each partition has its own lock, so that threads
+ * pinning blocks of different partitions do not contend.
+ * Consecutive blocks of a file are assigned to consecutive
+ * partitions, so a range of blocks is spread evenly over them.
  * @author Edward Sciore
  */
 public class BufferMgr {
+   /**
+    * The names of the available buffer replacement policies:
+    * least recently used, clock, LRU-2, and 2Q.
+    */
+   public static final String LRU = "lru", CLOCK = "clock",
+      LRU_K = "lru-k", TWO_Q = "2q";
+   
    private static final long MAX_TIME = 10000; // 10 seconds
-   private BasicBufferMgr bufferMgr;
+   private static final int MIN_PARTITION_SIZE = 8;
+   private static final int MAX_PARTITIONS = 16;
+   private BasicBufferMgr[] partitions;
+   private String policyname;
+   private Prefetcher prefetcher;
    
    /**
-    * Creates a new buffer manager having the specified 
+    * Creates a new buffer manager having the specified
     * number of buffers.
     * This constructor depends on both the {@link FileMgr} and
-    * {@link simpledb.log.LogMgr LogMgr} objects 
+    * {@link simpledb.log.LogMgr LogMgr} objects
     * that it gets from the class
     * {@link simpledb.server.SimpleDB}.
     * Those objects are created during system initialization.
-    * Thus this constructor cannot be called until 
+    * Thus this constructor cannot be called until
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffers the number of buffer slots to allocate
     */
    public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+      this(numbuffers, LRU);
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers and replacement policy.
+    * The buffers are split into one partition for every
+    * 8 buffers, up to a maximum of 16 partitions.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
+    */
+   public BufferMgr(int numbuffers, String policyname) {
+      this(numbuffers, policyname,
+           Math.min(MAX_PARTITIONS, Math.max(1, numbuffers / MIN_PARTITION_SIZE)));
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers, replacement policy, and partitions.
+    * Each partition has its own replacement policy.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
+    * @param numpartitions the number of partitions
+    */
+   public BufferMgr(int numbuffers, String policyname, int numpartitions) {
+      this.policyname = policyname;
+      partitions = new BasicBufferMgr[numpartitions];
+      for (int i=0; i<numpartitions; i++) {
+         int size = numbuffers / numpartitions;
+         if (i < numbuffers % numpartitions)
+            size++;
+         partitions[i] = new BasicBufferMgr(size, policyname);
+      }
+      prefetcher = new Prefetcher(this);
+      prefetcher.start();
    }
    
    /**
     * Pins a buffer to the specified block, potentially
     * waiting until a buffer becomes available.
-    * If no buffer becomes available within a fixed 
+    * If no buffer becomes available within a fixed
     * time period, then a {@link BufferAbortException} is thrown.
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
+   public Buffer pin(Block blk) {
+      return pin(blk, AccessPattern.RANDOM);
+   }
+   
+   /**
+    * Pins a buffer to the specified block, using the specified
+    * access pattern to decide where in the pool the block goes.
+    * @param blk a reference to a disk block
+    * @param pattern how the block is being accessed
+    * @return the buffer pinned to that block
+    * @see #pin(Block)
+    */
+   public Buffer pin(Block blk, AccessPattern pattern) {
+      BasicBufferMgr partition = partition(blk);
+      synchronized (partition) {
+         try {
+            long timestamp = System.currentTimeMillis();
+            Buffer buff = partition.pin(blk, pattern);
+            while (buff == null && !waitingTooLong(timestamp)) {
+               partition.wait(MAX_TIME);
+               buff = partition.pin(blk, pattern);
+            }
+            if (buff == null)
+               throw new BufferAbortException();
+            return buff;
          }
-         if (buff == null)
+         catch(InterruptedException e) {
             throw new BufferAbortException();
-         return buff;
+         }
+      }
+   }
+   
+   /**
+    * Pins buffers to consecutive blocks of the specified file,
+    * using the specified access pattern.
+    * Each run of blocks that are not in the pool is read
+    * with a single read, instead of one read per block.
+    * A block that is still being read by another thread, or whose
+    * partition has no available buffer, is pinned as by
+    * {@link #pin(Block, AccessPattern) pin}, potentially waiting.
+    * @param filename the name of the file
+    * @param startblk the number of the first block
+    * @param count the number of blocks
+    * @param pattern how the blocks are being accessed
+    * @return the buffers pinned to the blocks, in block order
+    */
+   public Buffer[] pinRange(String filename, int startblk, int count, AccessPattern pattern) {
+      Buffer[] buffs = new Buffer[count];
+      List<Buffer> run = new ArrayList<Buffer>();
+      int pinned = 0;  // the buffers before this position are pinned and loaded
+      try {
+         for (int i=0; i<count; i++) {
+            Block blk = new Block(filename, startblk + i);
+            Buffer buff = partition(blk).pinOrReserve(blk, pattern);
+            if (buff != null && buff.isLoading()) {
+               run.add(buff);
+               buffs[i] = buff;
+               continue;
+            }
+            readRun(run, pattern);
+            pinned = i;
+            buffs[i] = (buff != null) ? buff : pin(blk, pattern);
+            pinned = i + 1;
+         }
+         readRun(run, pattern);
+         return buffs;
       }
-      catch(InterruptedException e) {
-         throw new BufferAbortException();
+      catch(RuntimeException e) {
+         finishRun(run, false, pattern);
+         for (int i=0; i<pinned; i++)
+            unpin(buffs[i]);
+         throw e;
       }
    }
    
    /**
-    * Pins a buffer to a new block in the specified file, 
+    * Pins a buffer to a new block in the specified file,
     * potentially waiting until a buffer becomes available.
-    * If no buffer becomes available within a fixed 
-    * time period, then a {@link BufferAbortException} is thrown.
+    * A buffer is reserved for the file's next block, in the
+    * partition of that block, before the block is formatted
+    * in the buffer's page and appended to the file.
+    * If another thread appends to the file first, the buffer is
+    * released and a buffer is reserved for the following block.
+    * If no buffer becomes available within a fixed
+    * time period, then a {@link BufferAbortException} is thrown,
+    * and the file is not extended.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
-         }
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      return pinNew(filename, fmtr, AccessPattern.RANDOM);
+   }
+   
+   /**
+    * Pins a buffer to a new block in the specified file,
+    * using the specified access pattern to decide where
+    * in the pool the block goes.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @param pattern how the block is being accessed
+    * @return the buffer pinned to that block
+    * @see #pinNew(String, PageFormatter)
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr, AccessPattern pattern) {
+      long timestamp = System.currentTimeMillis();
+      while (true) {
+         Block blk = new Block(filename, SimpleDB.fileMgr().size(filename));
+         BasicBufferMgr partition = partition(blk);
+         Buffer buff = reserveNew(partition, blk, pattern, timestamp);
          if (buff == null)
-            throw new BufferAbortException();
-         return buff;
-      }
-      catch(InterruptedException e) {
-         throw new BufferAbortException();
+            continue;
+         boolean ok = false;
+         try {
+            ok = buff.appendReserved(fmtr);
+         }
+         finally {
+            synchronized (partition) {
+               partition.rangeLoaded(buff, ok, pattern);
+               partition.notifyAll();
+            }
+         }
+         if (ok)
+            return buff;
       }
    }
    
    /**
-    * Unpins the specified buffer. 
+    * Unpins the specified buffer.
     * If the buffer's pin count becomes 0,
-    * then the threads on the wait list are notified.
+    * then the threads on the wait list of
+    * its partition are notified.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
+   public void unpin(Buffer buff) {
+      BasicBufferMgr partition = partition(buff.block());
+      synchronized (partition) {
+         partition.unpin(buff);
+         if (!buff.isPinned())
+            partition.notifyAll();
+      }
    }
    
    /**
@@ -107,7 +247,49 @@ public class BufferMgr {
     * @param txnum the transaction's id number
     */
    public void flushAll(int txnum) {
-      bufferMgr.flushAll(txnum);
+      for (BasicBufferMgr partition : partitions)
+         partition.flushAll(txnum);
+   }
+   
+   /**
+    * Returns the dirty page table: the blocks whose buffers
+    * have logged changes that have not been written to disk,
+    * each mapped to the LSN of the earliest such change.
+    * The partitions are examined one at a time,
+    * so the table is not a consistent snapshot of the pool.
+    * @return the dirty page table
+    */
+   public Map<Block,Long> dirtyPageTable() {
+      Map<Block,Long> dpt = new HashMap<Block,Long>();
+      for (BasicBufferMgr partition : partitions)
+         partition.addDirtyPages(dpt);
+      return dpt;
+   }
+   
+   /**
+    * Asks for the specified blocks of a file to be read
+    * into the buffer pool in the background.
+    * The blocks are not pinned; they are placed in the
+    * ring for sequential access, so that they will be found there
+    * by a subsequent {@link #pin(Block, AccessPattern) pin}.
+    * A block that is already in the pool, or whose partition
+    * has no available buffer, is not read.
+    * @param filename the name of the file
+    * @param startblk the number of the first block to read
+    * @param count the number of blocks to read
+    */
+   public void prefetch(String filename, int startblk, int count) {
+      for (int i=0; i<count; i++)
+         prefetcher.request(new Block(filename, startblk + i));
+   }
+   
+   /**
+    * Starts a background thread that writes dirty,
+    * unpinned buffers to disk.
+    * @param pagesPerSecond the maximum number of pages written per second
+    */
+   public void startFlusher(int pagesPerSecond) {
+      new BufferFlusher(this, pagesPerSecond).start();
    }
    
    /**
@@ -115,7 +297,256 @@ public class BufferMgr {
     * @return the number of available buffers
     */
    public int available() {
-      return bufferMgr.available();
+      int result = 0;
+      for (BasicBufferMgr partition : partitions)
+         result += partition.available();
+      return result;
+   }
+   
+   /**
+    * Returns the name of the replacement policy,
+    * whose counts are returned by {@link #getHits()} and {@link #getMisses()}.
+    * @return the name of the replacement policy
+    */
+   public String getPolicyName() {
+      return policyname;
+   }
+   
+   /**
+    * Returns the largest number of consecutive blocks of a file
+    * that can currently be pinned together without waiting.
+    * Consecutive blocks are spread evenly over the partitions,
+    * so the number is limited by the partition having
+    * the fewest available buffers.
+    * Scans that pin a chunk of blocks at a time use this
+    * number to choose the size of their chunks.
+    * @return the number of buffers available for a range of blocks
+    */
+   public int availableForRange() {
+      int fewest = Integer.MAX_VALUE;
+      for (BasicBufferMgr partition : partitions)
+         fewest = Math.min(fewest, partition.available());
+      return fewest * partitions.length;
+   }
+   
+   /**
+    * Returns the number of pins that found their block
+    * already in the buffer pool, summed over the
+    * replacement policies of the partitions.
+    * @return the number of buffer hits
+    */
+   public long getHits() {
+      long result = 0;
+      for (BasicBufferMgr partition : partitions)
+         result += partition.hits();
+      return result;
+   }
+   
+   /**
+    * Returns the number of pins that had to read
+    * their block from disk, summed over the
+    * replacement policies of the partitions.
+    * @return the number of buffer misses
+    */
+   public long getMisses() {
+      long result = 0;
+      for (BasicBufferMgr partition : partitions)
+         result += partition.misses();
+      return result;
+   }
+   
+   /**
+    * Returns the blocks whose buffers are modified but not pinned,
+    * in no particular order.
+    * This method is called by the {@link BufferFlusher}.
+    * @return a list of dirty unpinned blocks
+    */
+   List<Block> dirtyUnpinnedBlocks() {
+      List<Block> result = new ArrayList<Block>();
+      for (BasicBufferMgr partition : partitions)
+         result.addAll(partition.dirtyUnpinnedBlocks());
+      return result;
+   }
+   
+   /**
+    * Writes the buffers assigned to the specified blocks to disk,
+    * provided that they are modified but not pinned.
+    * The blocks must be consecutive blocks of the same file, in block order.
+    * The page of each such buffer is copied into one of the
+    * specified pages while its partition is locked,
+    * and each run of consecutive copies is then written
+    * with a single write, without holding any partition lock.
+    * A pin that replaces a buffer whose copy is being written
+    * waits for the write.
+    * This method is called by the {@link BufferFlusher}.
+    * @param blks the consecutive blocks
+    * @param copies the pages receiving the copies, one per block
+    * @return the number of buffers written
+    */
+   int flushRun(List<Block> blks, Page[] copies) {
+      List<Buffer> run = new ArrayList<Buffer>();
+      long[] stamps = new long[blks.size()];
+      Block first = null;
+      int written = 0;
+      for (Block blk : blks) {
+         BasicBufferMgr partition = partition(blk);
+         Buffer buff;
+         synchronized (partition) {
+            buff = partition.dirtyUnpinnedBuffer(blk);
+            if (buff != null)
+               stamps[run.size()] = buff.beginWrite(copies[run.size()]);
+         }
+         if (buff != null) {
+            if (run.isEmpty())
+               first = blk;
+            run.add(buff);
+            continue;
+         }
+         written += writeCopies(first, run, copies, stamps);
+      }
+      written += writeCopies(first, run, copies, stamps);
+      return written;
+   }
+   
+   /**
+    * Reads the specified block into an unpinned buffer,
+    * unless it is already in the pool or no buffer is available.
+    * The block is read without holding its partition's lock.
+    * This method is called by the {@link Prefetcher}.
+    * @param blk a reference to a disk block
+    */
+   void prefetchBlock(Block blk) {
+      BasicBufferMgr partition = partition(blk);
+      Buffer buff = partition.reserveForPrefetch(blk);
+      if (buff == null)
+         return;
+      boolean ok = false;
+      try {
+         buff.readReserved();
+         ok = true;
+      }
+      finally {
+         synchronized (partition) {
+            partition.prefetched(buff, ok);
+            partition.notifyAll();
+         }
+      }
+   }
+   
+   /**
+    * Reads the blocks of the specified reserved buffers
+    * with a single read, and then finishes their pins.
+    * The list is emptied.
+    * @param run reserved buffers for consecutive blocks, in block order
+    * @param pattern how the blocks are being accessed
+    */
+   private void readRun(List<Buffer> run, AccessPattern pattern) {
+      if (run.isEmpty())
+         return;
+      boolean ok = false;
+      try {
+         Buffer.readReserved(run);
+         ok = true;
+      }
+      finally {
+         finishRun(run, ok, pattern);
+      }
+   }
+   
+   /**
+    * Finishes the pins of the specified reserved buffers,
+    * and empties the list.
+    * If the blocks were not read, the buffers are released.
+    * @param run the reserved buffers
+    * @param ok true if the blocks were read successfully
+    * @param pattern how the blocks are being accessed
+    */
+   private void finishRun(List<Buffer> run, boolean ok, AccessPattern pattern) {
+      for (Buffer buff : run) {
+         BasicBufferMgr partition = partition(buff.block());
+         synchronized (partition) {
+            partition.rangeLoaded(buff, ok, pattern);
+            partition.notifyAll();
+         }
+      }
+      run.clear();
+   }
+   
+   /**
+    * Writes the copies of the pages of the specified buffers
+    * to consecutive blocks with a single write,
+    * after the log records of the copied modifications,
+    * and then finishes the writes of the buffers.
+    * The list is emptied.
+    * @param first the block of the first buffer
+    * @param run the buffers whose pages have been copied, in block order
+    * @param copies the copies of their pages, in the same order
+    * @param stamps the stamps of the copies
+    * @return the number of buffers written
+    */
+   private int writeCopies(Block first, List<Buffer> run, Page[] copies, long[] stamps) {
+      int count = run.size();
+      if (count == 0)
+         return 0;
+      boolean ok = false;
+      try {
+         long lsn = -1;
+         for (Buffer buff : run)
+            lsn = Math.max(lsn, buff.latestLSN());
+         SimpleDB.logMgr().flush(lsn);
+         Page.writeRange(first.fileName(), first.number(), Arrays.copyOf(copies, count));
+         ok = true;
+      }
+      finally {
+         for (int i=0; i<count; i++)
+            run.get(i).endWrite(stamps[i], ok);
+         run.clear();
+      }
+      return count;
+   }
+   
+   /**
+    * Reserves a buffer of the partition for a block that
+    * is about to be appended, waiting until a buffer is available.
+    * If the block is already assigned to a buffer, then another
+    * thread has appended it, or is appending it; the method
+    * waits for the other append to finish and returns null.
+    * @param partition the partition of the block
+    * @param blk a reference to the new block
+    * @param pattern how the block is being accessed
+    * @param timestamp the time at which the caller began to wait
+    * @return the reserved buffer, or null if the block is taken
+    */
+   private Buffer reserveNew(BasicBufferMgr partition, Block blk,
+                             AccessPattern pattern, long timestamp) {
+      synchronized (partition) {
+         try {
+            while (true) {
+               Buffer existing = partition.assignedBuffer(blk);
+               if (existing != null && !existing.isLoading())
+                  return null;
+               if (existing == null) {
+                  Buffer buff = partition.reserveNew(blk, pattern);
+                  if (buff != null)
+                     return buff;
+               }
+               if (waitingTooLong(timestamp))
+                  throw new BufferAbortException();
+               partition.wait(MAX_TIME);
+            }
+         }
+         catch(InterruptedException e) {
+            throw new BufferAbortException();
+         }
+      }
+   }
+   
+   private BasicBufferMgr partition(Block blk) {
+      return partitions[partitionIndex(blk)];
+   }
+   
+   private int partitionIndex(Block blk) {
+      return Math.floorMod(blk.hashCode(), partitions.length);
    }
    
    private boolean waitingTooLong(long starttime) {
@@ -0,0 +1,61 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * Each buffer has a reference bit that is set whenever
+ * the buffer is pinned.
+ * To choose a buffer, a clock hand sweeps the pool,
+ * clearing the reference bits that are set and
+ * stopping at the first unpinned buffer whose bit is clear.
+ */
+class ClockPolicy extends ReplacementPolicy {
+   private Buffer[] bufferpool;
+   private Map<Buffer,Integer> positions = new IdentityHashMap<Buffer,Integer>();
+   private boolean[] referenced, candidate;
+   private int hand = 0;
+   
+   /**
+    * Creates a clock policy over the specified buffers.
+    * @param bufferpool the buffers managed by the policy
+    */
+   ClockPolicy(Buffer[] bufferpool) {
+      this.bufferpool = bufferpool;
+      referenced = new boolean[bufferpool.length];
+      candidate  = new boolean[bufferpool.length];
+      for (int i=0; i<bufferpool.length; i++)
+         positions.put(bufferpool[i], i);
+   }
+   
+   void pinned(Buffer buff, boolean hit) {
+      int pos = positions.get(buff);
+      referenced[pos] = true;
+      candidate[pos] = false;
+   }
+   
+   void unpinned(Buffer buff) {
+      candidate[positions.get(buff)] = true;
+   }
+   
+   /**
+    * Sweeps the clock hand at most twice around the pool.
+    * The second sweep finds a buffer whose reference bit
+    * was cleared during the first one.
+    */
+   Buffer chooseUnpinnedBuffer() {
+      for (int i=0; i<2*bufferpool.length; i++) {
+         int pos = hand;
+         hand = (hand + 1) % bufferpool.length;
+         if (!candidate[pos])
+            continue;
+         if (referenced[pos])
+            referenced[pos] = false;
+         else {
+            candidate[pos] = false;
+            return bufferpool[pos];
+         }
+      }
+      return null;
+   }
+}
@@ -0,0 +1,77 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy.
+ * The policy remembers the times of the last K pins of each block,
+ * and replaces the unpinned buffer whose K-th most recent pin
+ * is the oldest.
+ * Blocks that have been pinned fewer than K times are replaced first,
+ * in least-recently-used order.
+ * The history of a replaced block is retained for a while,
+ * so that a block that is re-read soon after being replaced
+ * is not treated as a newcomer.
+ */
+class LRUKPolicy extends ReplacementPolicy {
+   private int k;
+   private long clock = 0;
+   private Map<Buffer,long[]> history = new IdentityHashMap<Buffer,long[]>();
+   private Map<Block,long[]> retained;
+   private TreeSet<Buffer> candidates;
+   
+   /**
+    * Creates an LRU-K policy for a pool of the specified size.
+    * @param k the number of pins remembered for each block
+    * @param numbuffs the number of buffers in the pool
+    */
+   LRUKPolicy(int k, int numbuffs) {
+      this.k = k;
+      final int maxretained = numbuffs;
+      retained = new LinkedHashMap<Block,long[]>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> eldest) {
+            return size() > maxretained;
+         }
+      };
+      candidates = new TreeSet<Buffer>(new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            long[] h1 = history.get(b1), h2 = history.get(b2);
+            int result = Long.compare(h1[k-1], h2[k-1]);
+            return (result != 0) ? result : Long.compare(h1[0], h2[0]);
+         }
+      });
+   }
+   
+   /**
+    * Records the pin in the history of the buffer's block.
+    * The history is an array of the K most recent pin times,
+    * most recent first; a zero entry means no such pin.
+    */
+   void pinned(Buffer buff, boolean hit) {
+      long[] times;
+      if (hit) {
+         candidates.remove(buff);
+         times = history.get(buff);
+      }
+      else {
+         times = retained.remove(buff.block());
+         if (times == null)
+            times = new long[k];
+      }
+      System.arraycopy(times, 0, times, 1, k-1);
+      times[0] = ++clock;
+      history.put(buff, times);
+   }
+   
+   void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+   
+   Buffer chooseUnpinnedBuffer() {
+      Buffer buff = candidates.pollFirst();
+      if (buff != null)
+         retained.put(buff.block(), history.remove(buff));
+      return buff;
+   }
+}
@@ -0,0 +1,29 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The least-recently-used replacement policy.
+ * The buffer chosen for replacement is the one that
+ * has been unpinned the longest.
+ */
+class LRUPolicy extends ReplacementPolicy {
+   private Set<Buffer> candidates = new LinkedHashSet<Buffer>();
+   
+   void pinned(Buffer buff, boolean hit) {
+      candidates.remove(buff);
+   }
+   
+   void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+   
+   Buffer chooseUnpinnedBuffer() {
+      Iterator<Buffer> iter = candidates.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next();
+      iter.remove();
+      return buff;
+   }
+}
@@ -13,7 +13,7 @@ public interface PageFormatter {
     * Initializes a page, whose contents will be
     * written to a new disk block.
     * This method is called only during the method
-    * {@link Buffer#assignToNew}.
+    * {@link BufferMgr#pinNew}.
     * @param p a buffer page
     */
    public void format(Page p);
@@ -0,0 +1,51 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.concurrent.*;
+
+/**
+ * A background thread that reads blocks into the buffer pool
+ * before they are pinned, so that a sequential scan
+ * does not have to wait for each of its reads.
+ * Requests are queued; if the queue is full, the request
+ * is dropped, and the block will be read when it is pinned.
+ */
+class Prefetcher extends Thread {
+   private static final int MAX_QUEUED = 256;
+   
+   private BufferMgr bufferMgr;
+   private BlockingQueue<Block> requests = new LinkedBlockingQueue<Block>(MAX_QUEUED);
+   
+   /**
+    * Creates a prefetcher for the specified buffer manager.
+    * @param bufferMgr the buffer manager
+    */
+   Prefetcher(BufferMgr bufferMgr) {
+      super("buffer prefetcher");
+      this.bufferMgr = bufferMgr;
+      setDaemon(true);
+   }
+   
+   /**
+    * Asks the prefetcher to read the specified block.
+    * The method does not wait for the read.
+    * @param blk a reference to a disk block
+    */
+   void request(Block blk) {
+      requests.offer(blk);
+   }
+   
+   public void run() {
+      while (true) {
+         try {
+            bufferMgr.prefetchBlock(requests.take());
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(RuntimeException e) {
+            // the block will be read when it is pinned
+         }
+      }
+   }
+}
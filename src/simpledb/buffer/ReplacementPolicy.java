@@ -0,0 +1,73 @@
+package simpledb.buffer;
+
+/**
+ * The strategy used by a buffer manager to decide which
+ * unpinned buffer to replace when a block is not in the pool.
+ * The buffer manager informs the policy each time a buffer
+ * is pinned or becomes unpinned; the policy uses this
+ * information to rank the unpinned buffers.
+ * Buffers that have never been assigned to a block are
+ * handled by the buffer manager and are never seen by the policy.
+ * <P>
+ * The policy also counts the hits and misses of the pins
+ * made under it, so that policies can be compared on a workload.
+ */
+abstract class ReplacementPolicy {
+   private long hits = 0, misses = 0;
+
+   /**
+    * Records that the specified buffer has been pinned.
+    * The method is called for every pin, including pins of
+    * a buffer that is already pinned.
+    * @param buff the pinned buffer
+    * @param hit false if the buffer was just assigned to its block
+    */
+   abstract void pinned(Buffer buff, boolean hit);
+
+   /**
+    * Records that the pin count of the specified
+    * buffer has dropped to zero, so that the buffer
+    * is now a candidate for replacement.
+    * @param buff the unpinned buffer
+    */
+   abstract void unpinned(Buffer buff);
+
+   /**
+    * Chooses an unpinned buffer to be replaced,
+    * and stops tracking it.
+    * The buffer will be tracked again once it is pinned
+    * to its new block.
+    * @return the buffer to replace, or null if there are no candidates
+    */
+   abstract Buffer chooseUnpinnedBuffer();
+
+   /**
+    * Counts a pin of the buffer manager that uses this policy,
+    * including the pins of blocks kept in the sequential ring.
+    * @param hit true if the block was found in the pool
+    */
+   void countPin(boolean hit) {
+      if (hit)
+         hits++;
+      else
+         misses++;
+   }
+
+   /**
+    * Returns the number of pins that found their block
+    * already in the pool.
+    * @return the number of buffer hits
+    */
+   long hits() {
+      return hits;
+   }
+
+   /**
+    * Returns the number of pins that had to read
+    * their block from disk.
+    * @return the number of buffer misses
+    */
+   long misses() {
+      return misses;
+   }
+}
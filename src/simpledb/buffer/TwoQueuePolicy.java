@@ -0,0 +1,79 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The 2Q replacement policy.
+ * A block that is read into the pool goes on the A1in queue,
+ * which is managed first-in first-out.
+ * A block that is pinned again after having been replaced
+ * from A1in (which is remembered by the A1out queue of block ids)
+ * goes on the Am queue, which is managed least-recently-used.
+ * Buffers are replaced from A1in while it holds more than
+ * a quarter of the pool, so that blocks which are read only once,
+ * such as those of a table scan, do not displace the frequently
+ * used blocks on Am.
+ */
+class TwoQueuePolicy extends ReplacementPolicy {
+   private int kin, kout;
+   private long loads = 0;
+   private Map<Buffer,Long> a1in = new IdentityHashMap<Buffer,Long>();
+   private Set<Block> a1out = new LinkedHashSet<Block>();
+   private TreeSet<Buffer> a1inCandidates;
+   private Set<Buffer> amCandidates = new LinkedHashSet<Buffer>();
+   
+   /**
+    * Creates a 2Q policy for a pool of the specified size.
+    * @param numbuffs the number of buffers in the pool
+    */
+   TwoQueuePolicy(int numbuffs) {
+      kin  = Math.max(1, numbuffs / 4);
+      kout = Math.max(1, numbuffs / 2);
+      a1inCandidates = new TreeSet<Buffer>(new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            return a1in.get(b1).compareTo(a1in.get(b2));
+         }
+      });
+   }
+   
+   void pinned(Buffer buff, boolean hit) {
+      if (hit) {
+         if (a1in.containsKey(buff))
+            a1inCandidates.remove(buff);
+         else
+            amCandidates.remove(buff);
+      }
+      else if (!a1out.remove(buff.block()))
+         a1in.put(buff, ++loads);
+   }
+   
+   void unpinned(Buffer buff) {
+      if (a1in.containsKey(buff))
+         a1inCandidates.add(buff);
+      else
+         amCandidates.add(buff);
+   }
+   
+   Buffer chooseUnpinnedBuffer() {
+      if (a1in.size() > kin || amCandidates.isEmpty()) {
+         Buffer buff = a1inCandidates.pollFirst();
+         if (buff != null) {
+            a1in.remove(buff);
+            a1out.add(buff.block());
+            if (a1out.size() > kout) {
+               Iterator<Block> iter = a1out.iterator();
+               iter.next();
+               iter.remove();
+            }
+            return buff;
+         }
+      }
+      Iterator<Buffer> iter = amCandidates.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next();
+      iter.remove();
+      return buff;
+   }
+}
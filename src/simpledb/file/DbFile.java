@@ -0,0 +1,298 @@
+package simpledb.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * An open file of the database, as used by the {@link FileMgr}.
+ * Blocks are read and written by positional channel operations,
+ * which are thread-safe, and so reads and writes need no lock.
+ * The object's own lock is held only while appending a block,
+ * mapping a region, and forcing the file,
+ * so threads using different files never wait on each other.
+ * The number of blocks in the file is kept in memory,
+ * and is updated when a block is appended.
+ * <P>
+ * A range of consecutive blocks can be read or written
+ * with a single scattering or gathering channel operation.
+ * Those operations use the channel's position, and so
+ * hold the object's lock.
+ * <P>
+ * Each operation is counted in the file's {@link IOStats}.
+ */
+class DbFile {
+   private FileChannel fc;
+   private int blocksize;
+   private int blocksPerRegion;
+   private boolean temp;
+   private volatile int numblocks;
+   private volatile boolean unforced = false;
+   private List<MappedByteBuffer> regions = null;
+   private List<MappedByteBuffer> retired = null;  // replaced regions, not yet forced
+   private IOStats stats;
+
+   /**
+    * Opens the specified file.
+    * If blocksPerRegion is positive, then the file is
+    * memory-mapped in regions of that many blocks.
+    * @param file the file
+    * @param blocksize the block size of the database
+    * @param blocksPerRegion the number of blocks in a mapped region, or 0
+    * @param stats the counters of the file
+    * @throws IOException
+    */
+   DbFile(File file, int blocksize, int blocksPerRegion, IOStats stats) throws IOException {
+      this.blocksize = blocksize;
+      this.stats = stats;
+      this.blocksPerRegion = blocksPerRegion;
+      temp = file.getName().startsWith("temp");
+      fc = new RandomAccessFile(file, "rw").getChannel();
+      numblocks = (int) (fc.size() / blocksize);
+      if (blocksPerRegion > 0) {
+         regions = new ArrayList<MappedByteBuffer>();
+         retired = new ArrayList<MappedByteBuffer>();
+      }
+   }
+
+   /**
+    * Reads the specified block into the bytebuffer.
+    * The part of the block that lies past the end of the file
+    * reads as zeros.
+    * @param blknum the block number
+    * @param bb the bytebuffer
+    * @throws IOException
+    */
+   void read(int blknum, ByteBuffer bb) throws IOException {
+      ByteBuffer region = region(blknum, true);
+      if (region != null) {
+         region.position(regionOffset(blknum));
+         region.limit(region.position() + blocksize);
+         bb.put(region);
+      }
+      else {
+         long pos = (long) blknum * blocksize;
+         int n = 0;
+         while (bb.hasRemaining() && n >= 0)
+            n = fc.read(bb, pos + bb.position());
+         zeroRemaining(bb);
+      }
+      stats.recordRead(blocksize);
+   }
+
+   /**
+    * Writes the bytebuffer to the specified block.
+    * The size of the file is extended if the block
+    * lies past its end.
+    * @param blknum the block number
+    * @param bb the bytebuffer
+    * @throws IOException
+    */
+   void write(int blknum, ByteBuffer bb) throws IOException {
+      ByteBuffer region = region(blknum, false);
+      if (region != null) {
+         region.position(regionOffset(blknum));
+         region.put(bb);
+      }
+      else
+         fc.write(bb, (long) blknum * blocksize);
+      stats.recordWrite(blocksize);
+      if (!temp)
+         unforced = true;
+      if (blknum >= numblocks)
+         extendTo(blknum + 1);
+   }
+
+   /**
+    * Reads consecutive blocks, starting at the specified block,
+    * into the bytebuffers, one block per bytebuffer.
+    * The blocks that lie past the end of the file read as zeros.
+    * @param startblk the number of the first block
+    * @param bbs the bytebuffers
+    * @throws IOException
+    */
+   void readRange(int startblk, ByteBuffer[] bbs) throws IOException {
+      if (regions != null) {
+         for (int i=0; i<bbs.length; i++)
+            read(startblk + i, bbs[i]);
+         return;
+      }
+      synchronized (this) {
+         fc.position((long) startblk * blocksize);
+         long remaining = (long) bbs.length * blocksize;
+         while (remaining > 0) {
+            long n = fc.read(bbs);
+            if (n < 0)
+               break;  // the range extends past the end of the file
+            remaining -= n;
+         }
+      }
+      for (ByteBuffer bb : bbs)
+         zeroRemaining(bb);
+      stats.recordRead(bbs.length * blocksize);
+   }
+
+   /**
+    * Writes the bytebuffers to consecutive blocks,
+    * starting at the specified block, one block per bytebuffer.
+    * The size of the file is extended if the blocks
+    * lie past its end.
+    * @param startblk the number of the first block
+    * @param bbs the bytebuffers
+    * @throws IOException
+    */
+   void writeRange(int startblk, ByteBuffer[] bbs) throws IOException {
+      if (regions != null) {
+         for (int i=0; i<bbs.length; i++)
+            write(startblk + i, bbs[i]);
+         return;
+      }
+      synchronized (this) {
+         fc.position((long) startblk * blocksize);
+         while (bbs[bbs.length-1].hasRemaining())
+            fc.write(bbs);
+      }
+      stats.recordWrite(bbs.length * blocksize);
+      if (!temp)
+         unforced = true;
+      if (startblk + bbs.length > numblocks)
+         extendTo(startblk + bbs.length);
+   }
+
+   /**
+    * Writes the bytebuffer to a new block at the end of the file.
+    * The file's size is increased only after the block
+    * has been written, so that a concurrent reader never
+    * sees a block that does not yet exist.
+    * The formatted contents of a new block are not logged,
+    * and so, unless the file is temporary, the block is forced
+    * to disk before it can be used: the logged updates to it
+    * are then redone onto the formatted block after a crash.
+    * @param bb the bytebuffer
+    * @return the number of the new block
+    * @throws IOException
+    */
+   synchronized int append(ByteBuffer bb) throws IOException {
+      int blknum = numblocks;
+      fc.write(bb, (long) blknum * blocksize);
+      stats.recordAppend(blocksize);
+      if (!temp) {
+         fc.force(true);  // the metadata holds the new size of the file
+         stats.recordForce();
+      }
+      numblocks = blknum + 1;
+      return blknum;
+   }
+
+   /**
+    * Writes the bytebuffer to the specified block,
+    * provided that it is the next block of the file.
+    * @param blknum the number of the block to append
+    * @param bb the bytebuffer
+    * @return true if the block was appended; false if the file has another size
+    * @throws IOException
+    */
+   synchronized boolean appendAt(int blknum, ByteBuffer bb) throws IOException {
+      if (blknum != numblocks)
+         return false;
+      append(bb);
+      return true;
+   }
+
+   /**
+    * Returns the number of blocks in the file.
+    * @return the number of blocks
+    */
+   int size() {
+      return numblocks;
+   }
+
+   /**
+    * Forces the writes to the file to disk.
+    * Nothing happens if the file has not been
+    * written since it was last forced.
+    * @throws IOException
+    */
+   synchronized void force() throws IOException {
+      if (!unforced)
+         return;
+      unforced = false;
+      if (regions != null) {
+         for (MappedByteBuffer region : regions)
+            if (region != null)
+               region.force();
+         for (MappedByteBuffer region : retired)
+            region.force();
+         retired.clear();
+      }
+      fc.force(false);
+      stats.recordForce();
+   }
+
+   /**
+    * Closes the file.
+    * @throws IOException
+    */
+   void close() throws IOException {
+      fc.close();
+   }
+
+   /**
+    * Fills the rest of a bytebuffer that was read
+    * past the end of the file with zeros.
+    */
+   private static void zeroRemaining(ByteBuffer bb) {
+      if (bb.hasRemaining())
+         bb.put(new byte[bb.remaining()]);
+   }
+
+   private synchronized void extendTo(int size) {
+      if (size > numblocks)
+         numblocks = size;
+   }
+
+   /**
+    * Returns a view of the mapped region containing the specified block,
+    * mapping the region if necessary.
+    * Returns null if the file is not memory-mapped,
+    * or if the block lies past the end of the file;
+    * such a block is written through the channel,
+    * since mapping it would extend the file.
+    * The region at the end of the file is mapped only up to
+    * the end of the file.  Once blocks have been appended to it,
+    * the region is mapped again the first time one of them is read;
+    * until then, they are written through the channel.
+    * The previous mapping is kept until the file is next forced.
+    * @param blknum the block number
+    * @param remap true if the region may be mapped again to include the block
+    * @return a view of the block's region, or null
+    * @throws IOException
+    */
+   private ByteBuffer region(int blknum, boolean remap) throws IOException {
+      if (regions == null || blknum >= numblocks)
+         return null;
+      int r = blknum / blocksPerRegion;
+      synchronized (this) {
+         while (regions.size() <= r)
+            regions.add(null);
+         MappedByteBuffer region = regions.get(r);
+         if (region == null || region.capacity() < regionOffset(blknum) + blocksize) {
+            if (region != null && !remap)
+               return null;
+            if (region != null && !temp)
+               retired.add(region);
+            long start = (long) r * blocksPerRegion;
+            long length = Math.min(blocksPerRegion, numblocks - start);
+            region = fc.map(FileChannel.MapMode.READ_WRITE, start * blocksize, length * blocksize);
+            regions.set(r, region);
+         }
+         return region.duplicate();
+      }
+   }
+
+   private int regionOffset(int blknum) {
+      return (blknum % blocksPerRegion) * blocksize;
+   }
+}
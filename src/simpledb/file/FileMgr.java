@@ -1,10 +1,9 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The SimpleDB file manager.
@@ -12,6 +11,7 @@ import java.util.*;
  * The file manager provides methods for reading the contents of
  * a file block to a Java byte buffer,
  * writing the contents of a byte buffer to a file block,
+ * reading and writing a range of consecutive blocks at once,
  * and appending the contents of a byte buffer to the end of a file.
  * These methods are called exclusively by the class {@link simpledb.file.Page Page},
  * and are thus package-private.
@@ -19,31 +19,110 @@ import java.util.*;
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * <P>
+ * The block size of a database is chosen when the database is created,
+ * and is stored in a header file in the database directory;
+ * the file manager reads the header when it opens an existing database.
+ * The header also stores the version of the format of the log,
+ * which is checked by the log manager.
+ * <P>
+ * The file manager can optionally use memory-mapped I/O.
+ * Each file is then mapped in regions of a fixed number of blocks,
+ * and blocks are copied to and from the mapped regions instead of
+ * being read and written through the file channel.
+ * The region at the end of the file is mapped up to the end
+ * of the file, and is mapped again to include the blocks
+ * appended to it, so that small files are mapped as well.
+ * <P>
+ * Files are not opened for synchronous writes:
+ * a write is durable only after the file is forced,
+ * by calling {@link #force(String) force} or {@link #forceAll() forceAll}.
+ * The log manager forces the log files as it writes them,
+ * so that a commit or rollback forces only the log;
+ * the recovery manager forces the database files at each
+ * checkpoint and after recovery.
+ * An appended block, whose formatted contents are not logged,
+ * is forced as soon as it is appended.
+ * Temporary files are never recovered, and so are never forced.
+ * <P>
+ * The file manager has no lock of its own.
+ * Each open file is a {@link DbFile}, which reads and writes
+ * blocks using positional channel operations without locking,
+ * and locks only itself to append a block.
+ * The size of each file is kept in memory.
+ * <P>
+ * The disk operations are counted in an {@link IOStats}
+ * for the whole database, and in one for each file.
  * @author Edward Sciore
  *
  * CS 4432 Project 2
  *
  * IO logging is done here. 
- * Each time a file is read, written, updated, or deleted, the IO count is incremented.
+ * Each time a file is read, written, appended, forced, opened or deleted, the IO count is incremented.
  */
 public class FileMgr {
+    /**
+     * The name of the file holding the database's block size
+     * and log format.
+     */
+    public static final String HEADER_FILE = "simpledb.hdr";
+
+    /**
+     * The block size of a database created before
+     * block sizes were stored in a header file.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 400;
+
+    private static final int MIN_BLOCK_SIZE = 100;
+    private static final int BLOCKS_PER_REGION = 256;
+
     private File dbDirectory;
     private boolean isNew;
-    private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+    private int blocksize;
+    private int logformat;
+    private boolean mapped;
+    private Map<String,DbFile> openFiles = new ConcurrentHashMap<String,DbFile>();
 
-    // Records number of ios done. 
-    private long ios;
+    // Records the IOs done, in total and per file.
+    private IOStats stats = new IOStats(null);
+    private Map<String,IOStats> fileStats = new ConcurrentHashMap<String,IOStats>();
+
+    /**
+     * Creates a file manager for the specified database,
+     * using the default block size if the database is new.
+     * @param dbname the name of the directory that holds the database
+     */
+    public FileMgr(String dbname) {
+        this(dbname, DEFAULT_BLOCK_SIZE);
+    }
 
     /**
      * Creates a file manager for the specified database.
      * The database will be stored in a folder of that name
      * in the user's home directory.
      * If the folder does not exist, then a folder containing
-     * an empty database is created automatically.
+     * an empty database is created automatically,
+     * having the specified block size.
+     * Otherwise the block size is read from the database's header file,
+     * and the specified block size is ignored.
      * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
      * @param dbname the name of the directory that holds the database
+     * @param newblocksize the block size to use if the database is new
      */
-    public FileMgr(String dbname) {
+    public FileMgr(String dbname, int newblocksize) {
+        this(dbname, newblocksize, false);
+    }
+
+    /**
+     * Creates a file manager for the specified database,
+     * which uses memory-mapped I/O if so specified.
+     * @param dbname the name of the directory that holds the database
+     * @param newblocksize the block size to use if the database is new
+     * @param mapped true if the files should be memory-mapped
+     * @see #FileMgr(String, int)
+     */
+    public FileMgr(String dbname, int newblocksize, boolean mapped) {
+        this.mapped = mapped;
         String homedir = System.getProperty("user.home");
         dbDirectory = new File(homedir, dbname);
         isNew = !dbDirectory.exists();
@@ -52,11 +131,17 @@ public class FileMgr {
         if (isNew && !dbDirectory.mkdir())
             throw new RuntimeException("cannot create " + dbname);
 
+        File header = new File(dbDirectory, HEADER_FILE);
+        if (isNew)
+            writeHeader(header, newblocksize, 0);
+        blocksize = DEFAULT_BLOCK_SIZE;
+        if (header.exists())
+            readHeader(header);
+
         // remove any leftover temporary tables
         for (String filename : dbDirectory.list())
             if (filename.startsWith("temp"))
             new File(dbDirectory, filename).delete();
-        ios = 0;
     }
 
     /**
@@ -64,12 +149,10 @@ public class FileMgr {
      * @param blk a reference to a disk block
      * @param bb  the bytebuffer
      */
-    synchronized void read(Block blk, ByteBuffer bb) {
+    void read(Block blk, ByteBuffer bb) {
         try {
             bb.clear();
-            FileChannel fc = getFile(blk.fileName());
-            fc.read(bb, blk.number() * BLOCK_SIZE);
-            ios++;
+            getFile(blk.fileName()).read(blk.number(), bb);
         }
         catch (IOException e) {
             throw new RuntimeException("cannot read block " + blk);
@@ -81,47 +164,136 @@ public class FileMgr {
      * @param blk a reference to a disk block
      * @param bb  the bytebuffer
      */
-    synchronized void write(Block blk, ByteBuffer bb) {
+    void write(Block blk, ByteBuffer bb) {
         try {
             bb.rewind();
-            FileChannel fc = getFile(blk.fileName());
-            fc.write(bb, blk.number() * BLOCK_SIZE);
-            ios++;
+            getFile(blk.fileName()).write(blk.number(), bb);
         }
         catch (IOException e) {
             throw new RuntimeException("cannot write block" + blk);
         }
     }
 
+    /**
+     * Reads the contents of consecutive disk blocks into bytebuffers,
+     * one block per bytebuffer, using a single read.
+     * @param filename the name of the file
+     * @param startblk the number of the first block
+     * @param bbs the bytebuffers
+     */
+    void readRange(String filename, int startblk, ByteBuffer[] bbs) {
+        try {
+            for (ByteBuffer bb : bbs)
+                bb.clear();
+            getFile(filename).readRange(startblk, bbs);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot read " + bbs.length
+                    + " blocks of " + filename + " from block " + startblk);
+        }
+    }
+
+    /**
+     * Writes the contents of bytebuffers into consecutive disk blocks,
+     * one block per bytebuffer, using a single write.
+     * @param filename the name of the file
+     * @param startblk the number of the first block
+     * @param bbs the bytebuffers
+     */
+    void writeRange(String filename, int startblk, ByteBuffer[] bbs) {
+        try {
+            for (ByteBuffer bb : bbs)
+                bb.rewind();
+            getFile(filename).writeRange(startblk, bbs);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot write " + bbs.length
+                    + " blocks of " + filename + " from block " + startblk);
+        }
+    }
+
     /**
      * Appends the contents of a bytebuffer to the end
      * of the specified file.
+     * Concurrent appends to the same file
+     * are given different blocks.
      * @param filename the name of the file
      * @param bb  the bytebuffer
      * @return a reference to the newly-created block.
      */
-    synchronized Block append(String filename, ByteBuffer bb) {
-        int newblknum = size(filename);
-        Block blk = new Block(filename, newblknum);
-        write(blk, bb);
-        return blk;
+    Block append(String filename, ByteBuffer bb) {
+        try {
+            bb.rewind();
+            int newblknum = getFile(filename).append(bb);
+            return new Block(filename, newblknum);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot append to " + filename);
+        }
+    }
+
+    /**
+     * Appends the contents of a bytebuffer to the file
+     * of the specified block, as that block,
+     * provided that it is the next block of the file.
+     * @param blk a reference to the block to be appended
+     * @param bb  the bytebuffer
+     * @return true if the block was appended
+     */
+    boolean appendAt(Block blk, ByteBuffer bb) {
+        try {
+            bb.rewind();
+            return getFile(blk.fileName()).appendAt(blk.number(), bb);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot append to " + blk.fileName());
+        }
     }
 
     /**
      * Returns the number of blocks in the specified file.
+     * The size is kept in memory, and so no disk access is needed.
      * @param filename the name of the file
      * @return the number of blocks in the file
      */
-    public synchronized int size(String filename) {
+    public int size(String filename) {
         try {
-            FileChannel fc = getFile(filename);
-            return (int)(fc.size() / BLOCK_SIZE);
+            return getFile(filename).size();
         }
         catch (IOException e) {
             throw new RuntimeException("cannot access " + filename);
         }
     }
 
+    /**
+     * Forces the writes to the specified file to disk.
+     * Nothing happens if the file has not been written
+     * since it was last forced, or if it is a temporary file.
+     * @param filename the name of the file
+     */
+    public void force(String filename) {
+        try {
+            getFile(filename).force();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot force " + filename);
+        }
+    }
+
+    /**
+     * Forces the writes to every file to disk.
+     */
+    public void forceAll() {
+        for (Map.Entry<String,DbFile> e : openFiles.entrySet()) {
+            try {
+                e.getValue().force();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException("cannot force " + e.getKey());
+            }
+        }
+    }
+
     /**
      * Returns a boolean indicating whether the file manager
      * had to create a new database directory.
@@ -132,49 +304,170 @@ public class FileMgr {
     }
 
     /**
-     * Returns the file channel for the specified filename.
-     * The file channel is stored in a map keyed on the filename.
-     * If the file is not open, then it is opened and the file channel
-     * is added to the map.
+     * Returns the number of bytes in a block of this database.
+     * @return the block size
+     */
+    public int blockSize() {
+        return blocksize;
+    }
+
+    /**
+     * Returns the version of the log format recorded in
+     * the header of the database.
+     * The version is 0 if none has been recorded, as for a
+     * database created before log formats were recorded.
+     * @return the version of the log format
+     */
+    public int logFormat() {
+        return logformat;
+    }
+
+    /**
+     * Records the version of the log format in
+     * the header of the database.
+     * @param format the version of the log format
+     */
+    public synchronized void setLogFormat(int format) {
+        writeHeader(new File(dbDirectory, HEADER_FILE), blocksize, format);
+        logformat = format;
+    }
+
+    private void writeHeader(File header, int size, int format) {
+        if (size < MIN_BLOCK_SIZE)
+            throw new RuntimeException("block size " + size + " is too small");
+        try {
+            RandomAccessFile f = new RandomAccessFile(header, "rws");
+            f.writeInt(size);
+            f.writeInt(format);
+            f.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot write " + header);
+        }
+    }
+
+    /**
+     * Reads the block size and log format from the header.
+     * A header written before log formats were recorded
+     * holds only the block size.
+     */
+    private void readHeader(File header) {
+        try {
+            RandomAccessFile f = new RandomAccessFile(header, "r");
+            blocksize = f.readInt();
+            logformat = (f.length() >= 8) ? f.readInt() : 0;
+            f.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot read " + header);
+        }
+    }
+
+    /**
+     * Returns the open file for the specified filename.
+     * The open file is stored in a map keyed on the filename.
+     * If the file is not open, then it is opened and
+     * added to the map; the map is locked only while doing so.
      * @param filename the specified filename
-     * @return the file channel associated with the open file.
+     * @return the open file
      * @throws IOException
      */
-    private FileChannel getFile(String filename) throws IOException {
-        FileChannel fc = openFiles.get(filename);
-        if (fc == null) {
-            File dbTable = new File(dbDirectory, filename);
-            RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-            fc = f.getChannel();
-            openFiles.put(filename, fc);
+    private DbFile getFile(String filename) throws IOException {
+        DbFile f = openFiles.get(filename);
+        if (f == null) {
+            synchronized (openFiles) {
+                f = openFiles.get(filename);
+                if (f == null) {
+                    File dbTable = new File(dbDirectory, filename);
+                    IOStats fs = fileStats(filename);
+                    f = new DbFile(dbTable, blocksize, mapped ? BLOCKS_PER_REGION : 0, fs);
+                    fs.recordFileOp();
+                    openFiles.put(filename, f);
+                }
+            }
         }
-        ios++;
-        return fc;
+        return f;
     }
 
     /**
      * CS 4432 Project 2
      * 
-     * Deletes a file
+     * Deletes a file, whether or not it is open.
      * @param filename the specified filename
      * @throws IOException
      */
     public void deleteFile(String filename) throws IOException {
-        FileChannel fc = openFiles.get(filename);
-        if (fc != null) {
-            fc.close();
-            openFiles.remove(filename);
-            File dbTable = new File(dbDirectory, filename);
-            dbTable.delete();
-            ios++;
+        DbFile f;
+        synchronized (openFiles) {
+            f = openFiles.remove(filename);
         }
+        if (f != null)
+            f.close();
+        File dbTable = new File(dbDirectory, filename);
+        if (dbTable.delete())
+            fileStats(filename).recordFileOp();
+    }
+
+    /**
+     * Returns the names of the files in the database directory
+     * that start with the specified prefix, in sorted order.
+     * @param prefix the prefix of the file names
+     * @return the names of the matching files
+     */
+    public List<String> fileNames(String prefix) {
+        List<String> result = new ArrayList<String>();
+        for (String filename : dbDirectory.list())
+            if (filename.startsWith(prefix))
+                result.add(filename);
+        Collections.sort(result);
+        return result;
     }
 
     /**
      *
      * @return The number of IOs done by this manager
+     * @see IOStats#total()
      */
     public long getIos() {
-        return ios;
+        return stats.total();
+    }
+
+    /**
+     * Returns the counters of the disk operations
+     * done for the whole database.
+     * @return the database's counters
+     */
+    public IOStats stats() {
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the counters of each file
+     * that has been used, keyed on the filename.
+     * The counters of a deleted file are kept.
+     * @return the counters of each file
+     */
+    public Map<String,IOStats> fileStats() {
+        Map<String,IOStats> result = new TreeMap<String,IOStats>();
+        for (Map.Entry<String,IOStats> e : fileStats.entrySet())
+            result.put(e.getKey(), e.getValue().snapshot());
+        return result;
+    }
+
+    /**
+     * Returns the counters of the specified file,
+     * creating them if necessary.
+     * @param filename the name of the file
+     * @return the file's counters
+     */
+    private IOStats fileStats(String filename) {
+        synchronized (openFiles) {
+            IOStats fs = fileStats.get(filename);
+            if (fs == null) {
+                fs = new IOStats(stats);
+                fileStats.put(filename, fs);
+            }
+            return fs;
+        }
     }
 }
@@ -0,0 +1,179 @@
+package simpledb.file;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the disk operations done by the file manager,
+ * either for the whole database or for a single file.
+ * Reads, writes and appends are counted once per operation,
+ * however many blocks the operation moves;
+ * the bytes moved are counted separately.
+ * Forces count only the calls that actually synchronized
+ * a file with the disk, and file operations count
+ * the files opened and deleted.
+ * <P>
+ * The counters are updated without locking.
+ * The counters of a file also update the counters of
+ * the whole database.
+ * A {@link #snapshot() snapshot} holds fixed values;
+ * the difference of two snapshots gives the work done in between.
+ */
+public class IOStats {
+   private IOStats parent;
+   private AtomicLong reads        = new AtomicLong();
+   private AtomicLong writes       = new AtomicLong();
+   private AtomicLong appends      = new AtomicLong();
+   private AtomicLong forces       = new AtomicLong();
+   private AtomicLong fileOps      = new AtomicLong();
+   private AtomicLong bytesRead    = new AtomicLong();
+   private AtomicLong bytesWritten = new AtomicLong();
+
+   /**
+    * Creates counters whose updates are also made to the
+    * specified counters, if not null.
+    * @param parent the counters of the whole database, or null
+    */
+   IOStats(IOStats parent) {
+      this.parent = parent;
+   }
+
+   void recordRead(int bytes) {
+      reads.incrementAndGet();
+      bytesRead.addAndGet(bytes);
+      if (parent != null)
+         parent.recordRead(bytes);
+   }
+
+   void recordWrite(int bytes) {
+      writes.incrementAndGet();
+      bytesWritten.addAndGet(bytes);
+      if (parent != null)
+         parent.recordWrite(bytes);
+   }
+
+   void recordAppend(int bytes) {
+      appends.incrementAndGet();
+      bytesWritten.addAndGet(bytes);
+      if (parent != null)
+         parent.recordAppend(bytes);
+   }
+
+   void recordForce() {
+      forces.incrementAndGet();
+      if (parent != null)
+         parent.recordForce();
+   }
+
+   void recordFileOp() {
+      fileOps.incrementAndGet();
+      if (parent != null)
+         parent.recordFileOp();
+   }
+
+   /**
+    * Returns the number of read operations.
+    * @return the number of reads
+    */
+   public long reads() {
+      return reads.get();
+   }
+
+   /**
+    * Returns the number of write operations,
+    * not counting appends.
+    * @return the number of writes
+    */
+   public long writes() {
+      return writes.get();
+   }
+
+   /**
+    * Returns the number of blocks appended.
+    * @return the number of appends
+    */
+   public long appends() {
+      return appends.get();
+   }
+
+   /**
+    * Returns the number of times a file was forced to disk.
+    * @return the number of forces
+    */
+   public long forces() {
+      return forces.get();
+   }
+
+   /**
+    * Returns the number of files opened or deleted.
+    * @return the number of file operations
+    */
+   public long fileOps() {
+      return fileOps.get();
+   }
+
+   /**
+    * Returns the number of bytes read.
+    * @return the number of bytes read
+    */
+   public long bytesRead() {
+      return bytesRead.get();
+   }
+
+   /**
+    * Returns the number of bytes written, including appends.
+    * @return the number of bytes written
+    */
+   public long bytesWritten() {
+      return bytesWritten.get();
+   }
+
+   /**
+    * Returns the total number of disk operations of all kinds.
+    * @return the number of disk operations
+    */
+   public long total() {
+      return reads() + writes() + appends() + forces() + fileOps();
+   }
+
+   /**
+    * Returns a copy of the current values of the counters.
+    * @return the snapshot
+    */
+   public IOStats snapshot() {
+      IOStats s = new IOStats(null);
+      s.reads.set(reads());
+      s.writes.set(writes());
+      s.appends.set(appends());
+      s.forces.set(forces());
+      s.fileOps.set(fileOps());
+      s.bytesRead.set(bytesRead());
+      s.bytesWritten.set(bytesWritten());
+      return s;
+   }
+
+   /**
+    * Returns the difference between these counters
+    * and the specified earlier snapshot.
+    * @param earlier an earlier snapshot of the same counters
+    * @return the operations done since the earlier snapshot
+    */
+   public IOStats minus(IOStats earlier) {
+      IOStats s = new IOStats(null);
+      s.reads.set(reads() - earlier.reads());
+      s.writes.set(writes() - earlier.writes());
+      s.appends.set(appends() - earlier.appends());
+      s.forces.set(forces() - earlier.forces());
+      s.fileOps.set(fileOps() - earlier.fileOps());
+      s.bytesRead.set(bytesRead() - earlier.bytesRead());
+      s.bytesWritten.set(bytesWritten() - earlier.bytesWritten());
+      return s;
+   }
+
+   public String toString() {
+      return "reads " + reads() + ", writes " + writes()
+            + ", appends " + appends() + ", forces " + forces()
+            + ", file ops " + fileOps()
+            + ", bytes read " + bytesRead()
+            + ", bytes written " + bytesWritten();
+   }
+}
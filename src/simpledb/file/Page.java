@@ -6,9 +6,14 @@ import java.nio.charset.Charset;
 
 /**
  * The contents of a disk block in memory.
- * A page is treated as an array of BLOCK_SIZE bytes.
+ * A page is treated as an array of bytes, whose size is
+ * the block size of the database (see {@link FileMgr#blockSize()}).
  * There are methods to get/set values into this array,
  * and to read/write the contents of this array to a disk block.
+ * The get/set methods use absolute offsets and are not synchronized;
+ * the caller is expected to have pinned the page's buffer and to hold
+ * the appropriate lock on its block, which keeps conflicting
+ * accesses apart.
  * 
  * For an example of how to use Page and 
  * {@link Block} objects, 
@@ -36,14 +41,6 @@ import java.nio.charset.Charset;
  * @author Edward Sciore
  */
 public class Page {
-   /**
-    * The number of bytes in a block.
-    * This value is set unreasonably low, so that it is easier
-    * to create and test databases having a lot of blocks.
-    * A more realistic value would be 4K.
-    */
-   public static final int BLOCK_SIZE = 400;
-   
    /**
     * The size of an integer in bytes.
     * This value is almost certainly 4, but it is
@@ -62,12 +59,24 @@ public class Page {
     * @return the maximum number of bytes required to store a string of size n
     */
    public static final int STR_SIZE(int n) {
-      float bytesPerChar = Charset.defaultCharset().newEncoder().maxBytesPerChar();
-      return INT_SIZE + (n * (int)bytesPerChar);
+      return INT_SIZE + (n * BYTES_PER_CHAR);
    }
    
-   private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
+   private static final Charset CHARSET = Charset.defaultCharset();
+   private static final int BYTES_PER_CHAR = (int) CHARSET.newEncoder().maxBytesPerChar();
+   private static final boolean ASCII_COMPATIBLE =
+         CHARSET.name().equals("UTF-8") || CHARSET.name().equals("US-ASCII")
+         || CHARSET.name().equals("ISO-8859-1");
+   
+   // reused by getString, so that decoding a string allocates only the string
+   private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+      protected byte[] initialValue() {
+         return new byte[64];
+      }
+   };
+   
    private FileMgr filemgr = SimpleDB.fileMgr();
+   private ByteBuffer contents = ByteBuffer.allocateDirect(filemgr.blockSize());
    
    /**
     * Creates a new page.  Although the constructor takes no arguments,
@@ -108,6 +117,62 @@ public class Page {
       return filemgr.append(filename, contents);
    }
    
+   /**
+    * Appends the contents of the page to the file of the
+    * specified block, as that block, provided that
+    * the block is the next block of the file.
+    * @param blk a reference to the block to be appended
+    * @return true if the block was appended; false if the file has another size
+    */
+   public synchronized boolean appendAt(Block blk) {
+      return filemgr.appendAt(blk, contents);
+   }
+   
+   /**
+    * Populates the specified pages with the contents of
+    * consecutive blocks of a file, using a single read.
+    * The pages are not locked; the caller must ensure
+    * that no other thread uses them during the read.
+    * @param filename the name of the file
+    * @param startblk the number of the block read into the first page
+    * @param pages the pages
+    */
+   public static void readRange(String filename, int startblk, Page[] pages) {
+      pages[0].filemgr.readRange(filename, startblk, contentsOf(pages));
+   }
+
+   /**
+    * Writes the contents of the specified pages to
+    * consecutive blocks of a file, using a single write.
+    * The pages are not locked; the caller must ensure
+    * that no other thread modifies them during the write.
+    * @param filename the name of the file
+    * @param startblk the number of the block written from the first page
+    * @param pages the pages
+    */
+   public static void writeRange(String filename, int startblk, Page[] pages) {
+      pages[0].filemgr.writeRange(filename, startblk, contentsOf(pages));
+   }
+
+   private static ByteBuffer[] contentsOf(Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i=0; i<pages.length; i++)
+         bbs[i] = pages[i].contents;
+      return bbs;
+   }
+
+   /**
+    * Replaces the contents of this page with
+    * the contents of the specified page.
+    * @param pg the page to copy
+    */
+   public synchronized void copyFrom(Page pg) {
+      ByteBuffer src = pg.contents.duplicate();
+      src.clear();
+      contents.clear();
+      contents.put(src);
+   }
+   
    /**
     * Returns the integer value at a specified offset of the page.
     * If an integer was not stored at that location, 
@@ -115,9 +180,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the integer value at that offset
     */
-   public synchronized int getInt(int offset) {
-      contents.position(offset);
-      return contents.getInt();
+   public int getInt(int offset) {
+      return contents.getInt(offset);
    }
    
    /**
@@ -125,9 +189,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the integer to be written to the page
     */
-   public synchronized void setInt(int offset, int val) {
-      contents.position(offset);
-      contents.putInt(val);
+   public void setInt(int offset, int val) {
+      contents.putInt(offset, val);
    }
    
    /**
@@ -137,12 +200,68 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the string value at that offset
     */
-   public synchronized String getString(int offset) {
-      contents.position(offset);
-      int len = contents.getInt();
-      byte[] byteval = new byte[len];
-      contents.get(byteval);
-      return new String(byteval);
+   public String getString(int offset) {
+      int len = contents.getInt(offset);
+      byte[] byteval = scratch.get();
+      if (byteval.length < len) {
+         byteval = new byte[len];
+         scratch.set(byteval);
+      }
+      int pos = offset + INT_SIZE;
+      for (int i=0; i<len; i++)
+         byteval[i] = contents.get(pos + i);
+      return new String(byteval, 0, len, CHARSET);
+   }
+   
+   /**
+    * Compares the string value at the specified offset of the page
+    * with the specified string, as {@link String#compareTo(String)} would.
+    * If the stored string is ASCII, it is compared in place,
+    * without being decoded.
+    * @param offset the byte offset within the page
+    * @param val the string to compare with
+    * @return a negative integer, zero, or a positive integer as the stored
+    * string is less than, equal to, or greater than val
+    */
+   public int compareString(int offset, String val) {
+      if (!ASCII_COMPATIBLE)
+         return getString(offset).compareTo(val);
+      int len = contents.getInt(offset);
+      int pos = offset + INT_SIZE;
+      int n = Math.min(len, val.length());
+      for (int i=0; i<n; i++) {
+         byte b = contents.get(pos + i);
+         if (b < 0)  // not ASCII, so decode the string
+            return getString(offset).compareTo(val);
+         int diff = b - val.charAt(i);
+         if (diff != 0)
+            return diff;
+      }
+      return len - val.length();
+   }
+   
+   /**
+    * Copies the specified number of bytes, starting at the
+    * specified offset of the page, into the array.
+    * @param offset the byte offset within the page
+    * @param dst the array receiving the bytes
+    * @param len the number of bytes
+    */
+   public void getBytes(int offset, byte[] dst, int len) {
+      for (int i=0; i<len; i++)
+         dst[i] = contents.get(offset + i);
+   }
+   
+   /**
+    * Copies the specified number of bytes from the array
+    * to the specified offset of the page.
+    * @param offset the byte offset within the page
+    * @param src the array holding the bytes
+    * @param len the number of bytes
+    */
+   public void setBytes(int offset, byte[] src, int len) {
+      for (int i=0; i<len; i++)
+         contents.put(offset + i, src[i]);
    }
    
    /**
@@ -150,10 +269,11 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the string to be written to the page
     */
-   public synchronized void setString(int offset, String val) {
-      contents.position(offset);
-      byte[] byteval = val.getBytes();
-      contents.putInt(byteval.length);
-      contents.put(byteval);
+   public void setString(int offset, String val) {
+      byte[] byteval = val.getBytes(CHARSET);
+      contents.putInt(offset, byteval.length);
+      int pos = offset + INT_SIZE;
+      for (int i=0; i<byteval.length; i++)
+         contents.put(pos + i, byteval[i]);
    }
 }
@@ -43,7 +43,7 @@ public class BTreePage {
     */
    public int findSlotBefore(Constant searchkey) {
       int slot = 0;
-      while (slot < getNumRecs() && getDataVal(slot).compareTo(searchkey) < 0)
+      while (slot < getNumRecs() && compareDataVal(slot, searchkey) < 0)
          slot++;
       return slot-1;
    }
@@ -62,7 +62,7 @@ public class BTreePage {
     * @return true if the block is full
     */
    public boolean isFull() {
-      return slotpos(getNumRecs()+1) >= BLOCK_SIZE;
+      return slotpos(getNumRecs()+1) >= tx.blockSize();
    }
    
    /**
@@ -91,6 +91,22 @@ public class BTreePage {
       return getVal(slot, "dataval");
    }
    
+   /**
+    * Compares the dataval of the record at the specified slot
+    * with the specified value, without creating a constant
+    * for the dataval.
+    * @param slot the integer slot of an index record
+    * @param val the value to compare with
+    * @return a negative integer, zero, or a positive integer as the
+    * dataval is less than, equal to, or greater than val
+    */
+   public int compareDataVal(int slot, Constant val) {
+      if (ti.schema().type("dataval") == INTEGER)
+         return Integer.compare(getInt(slot, "dataval"), (Integer) val.asJavaVal());
+      int pos = fldpos(slot, "dataval");
+      return tx.compareString(currentblk, pos, (String) val.asJavaVal());
+   }
+   
    /**
     * Returns the value of the page's flag field
     * @return the value of the page's flag field
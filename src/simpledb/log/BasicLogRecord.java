@@ -1,6 +1,6 @@
 package simpledb.log;
 
-import static simpledb.file.Page.*;
+import java.nio.charset.StandardCharsets;
 import simpledb.file.Page;
 
 /**
@@ -8,47 +8,108 @@ import simpledb.file.Page;
  * a log record.
  * The class has no idea what values are there.
  * Instead, the methods {@link #nextInt() nextInt}
- * and {@link #nextString() nextString} read the values 
+ * and {@link #nextString() nextString} read the values
  * sequentially.
  * Thus the client is responsible for knowing how many values
  * are in the log record, and what their types are.
+ * <P>
+ * The values are encoded as described in {@link LogBuffer}.
+ * A log iterator reuses a single object for all of its records,
+ * so the object is valid only until the iterator moves on.
  * @author Edward Sciore
  */
 public class BasicLogRecord {
-   private Page pg;
-   private int pos;
-   
+   private byte[] buf = new byte[64];
+   private int pos, size;
+   private long lsn;
+
    /**
-    * A log record located at the specified position of the specified page.
+    * Creates an object that holds no log record.
     * This constructor is called exclusively by
-    * {@link LogIterator#next()}.
+    * {@link LogIterator}.
+    */
+   BasicLogRecord() {}
+
+   /**
+    * Copies the log record located between the specified
+    * positions of the specified page, and positions
+    * the object at its first value.
     * @param pg the page containing the log record
-    * @param pos the position of the log record 
+    * @param start the position of the log record
+    * @param end the position following the log record
+    * @param lsn the LSN of the log record
     */
-   public BasicLogRecord(Page pg, int pos) {
-      this.pg = pg;
-      this.pos = pos;
+   void load(Page pg, int start, int end, long lsn) {
+      this.lsn = lsn;
+      size = end - start;
+      if (buf.length < size)
+         buf = new byte[size];
+      pg.getBytes(start, buf, size);
+      pos = 0;
    }
-   
+
    /**
-    * Returns the next value of the current log record, 
+    * Returns the LSN of the log record,
+    * as returned by {@link LogMgr#append(LogBuffer)}.
+    * @return the LSN of the log record
+    */
+   public long lsn() {
+      return lsn;
+   }
+
+   /**
+    * Returns the next value of the current log record,
     * assuming it is an integer.
     * @return the next value of the current log record
     */
    public int nextInt() {
-      int result = pg.getInt(pos);
-      pos += INT_SIZE;
-      return result;
+      int val = nextVarint();
+      return (val >>> 1) ^ -(val & 1);
+   }
+
+   /**
+    * Returns the next value of the current log record,
+    * assuming it is a long integer.
+    * @return the next value of the current log record
+    */
+   public long nextLong() {
+      long val = 0;
+      for (int shift=0; ; shift+=7) {
+         byte b = buf[pos++];
+         val |= (long) (b & 0x7F) << shift;
+         if (b >= 0)
+            return (val >>> 1) ^ -(val & 1);
+      }
    }
-   
+
    /**
-    * Returns the next value of the current log record, 
+    * Returns true if the log record has values
+    * that have not yet been read.
+    * @return true if there are more values
+    */
+   public boolean hasMore() {
+      return pos < size;
+   }
+
+   /**
+    * Returns the next value of the current log record,
     * assuming it is a string.
     * @return the next value of the current log record
     */
    public String nextString() {
-      String result = pg.getString(pos);
-      pos += STR_SIZE(result.length());
+      int len = nextVarint();
+      String result = new String(buf, pos, len, StandardCharsets.UTF_8);
+      pos += len;
       return result;
    }
+
+   private int nextVarint() {
+      int val = 0;
+      for (int shift=0; ; shift+=7) {
+         byte b = buf[pos++];
+         val |= (b & 0x7F) << shift;
+         if (b >= 0)
+            return val;
+      }
+   }
 }
@@ -0,0 +1,105 @@
+package simpledb.log;
+
+import static simpledb.file.Page.INT_SIZE;
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+import java.util.*;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log file in the order they were appended,
+ * starting from a specified LSN.
+ * The records of a block are chained from the last one back,
+ * so the iterator reads the chain of each block into an array
+ * before returning its records.
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogMgr logMgr;
+   private long fromLSN;
+   private int blknum, lastblk;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private Page pg = new Page();
+   private int[] ends = new int[16];  // the trailer positions of the block's records
+   private int count, current;
+   private BasicLogRecord rec = new BasicLogRecord();
+
+   /**
+    * Creates an iterator for the records in the specified blocks
+    * of the log having an LSN of at least the specified LSN.
+    * This constructor is called exclusively by
+    * {@link LogMgr#iterator(long)}.
+    * @param logMgr the log manager
+    * @param fromLSN the LSN of the earliest record to return
+    * @param firstblk the number of the block holding that record
+    * @param lastblk the number of the last block of the log
+    */
+   ForwardLogIterator(LogMgr logMgr, long fromLSN, int firstblk, int lastblk) {
+      this.logMgr = logMgr;
+      this.fromLSN = fromLSN;
+      this.lastblk = lastblk;
+      blknum = firstblk - 1;
+      count = current = 0;
+   }
+
+   /**
+    * Determines if there is a later record in the log,
+    * moving to the next block that has one if necessary.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (true) {
+         while (current < count) {
+            if (lsn(ends[current]) >= fromLSN)
+               return true;
+            current++;
+         }
+         if (blknum >= lastblk)
+            return false;
+         moveToNextBlock();
+      }
+   }
+
+   /**
+    * Moves to the next log record in append order.
+    * The returned object is reused by the following call.
+    * @return the next log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      int start = (current == 0) ? INT_SIZE : ends[current-1] + INT_SIZE;
+      int end = ends[current++];
+      rec.load(pg, start, end, lsn(end));
+      return rec;
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Reads the next block of the log, and the positions
+    * of its records in append order.
+    */
+   private void moveToNextBlock() {
+      blknum++;
+      pg.read(logMgr.logBlock(blknum));
+      count = 0;
+      for (int pos = pg.getInt(LogMgr.LAST_POS); pos > 0; pos = pg.getInt(pos)) {
+         if (count == ends.length)
+            ends = Arrays.copyOf(ends, 2*count);
+         ends[count++] = pos;
+      }
+      // the chain was read from the last record back
+      for (int i=0, j=count-1; i<j; i++, j--) {
+         int tmp = ends[i];
+         ends[i] = ends[j];
+         ends[j] = tmp;
+      }
+      current = 0;
+   }
+
+   private long lsn(int end) {
+      return (long) blknum * blocksize + end + INT_SIZE;
+   }
+}
@@ -0,0 +1,134 @@
+package simpledb.log;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable buffer that encodes the values of a log record,
+ * which is then appended to the log by {@link LogMgr#append(LogBuffer)}.
+ * Integers and long integers are encoded as variable-length integers:
+ * the integer is zigzag-encoded so that small negative values
+ * are also small, and is then written seven bits per byte,
+ * so that values below 64 in magnitude take a single byte.
+ * A string is encoded as the variable-length number of its bytes,
+ * followed by its UTF-8 encoding.
+ * The values are read back, in the same order, by a {@link BasicLogRecord}.
+ * <P>
+ * Each thread has its own buffer, which is obtained by
+ * {@link #forThread()}, so that encoding a record
+ * allocates no objects.
+ */
+public class LogBuffer {
+   private static final ThreadLocal<LogBuffer> buffers = new ThreadLocal<LogBuffer>() {
+      protected LogBuffer initialValue() {
+         return new LogBuffer();
+      }
+   };
+
+   private byte[] buf = new byte[64];
+   private int size = 0;
+
+   /**
+    * Returns the calling thread's buffer, emptied.
+    * The buffer must not be used after the thread next calls this method.
+    * @return the empty buffer
+    */
+   public static LogBuffer forThread() {
+      return buffers.get().clear();
+   }
+
+   /**
+    * Creates an empty buffer.
+    */
+   public LogBuffer() {}
+
+   /**
+    * Empties the buffer, so that it can encode another record.
+    * @return this buffer
+    */
+   public LogBuffer clear() {
+      size = 0;
+      return this;
+   }
+
+   /**
+    * Appends an integer to the record.
+    * @param val the integer
+    * @return this buffer
+    */
+   public LogBuffer putInt(int val) {
+      putVarint((val << 1) ^ (val >> 31));
+      return this;
+   }
+
+   /**
+    * Appends a long integer, such as an LSN, to the record.
+    * @param val the long integer
+    * @return this buffer
+    */
+   public LogBuffer putLong(long val) {
+      long v = (val << 1) ^ (val >> 63);
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+         buf[size++] = (byte) ((v & 0x7F) | 0x80);
+         v >>>= 7;
+      }
+      buf[size++] = (byte) v;
+      return this;
+   }
+
+   /**
+    * Appends a string to the record.
+    * An ASCII string is copied directly, without being encoded.
+    * @param val the string
+    * @return this buffer
+    */
+   public LogBuffer putString(String val) {
+      int n = val.length();
+      boolean ascii = true;
+      for (int i=0; i<n && ascii; i++)
+         ascii = val.charAt(i) < 0x80;
+      if (ascii) {
+         putVarint(n);
+         ensure(n);
+         for (int i=0; i<n; i++)
+            buf[size++] = (byte) val.charAt(i);
+      }
+      else {
+         byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+         putVarint(bytes.length);
+         ensure(bytes.length);
+         System.arraycopy(bytes, 0, buf, size, bytes.length);
+         size += bytes.length;
+      }
+      return this;
+   }
+
+   /**
+    * Returns the number of bytes in the encoded record.
+    * @return the size of the record
+    */
+   public int size() {
+      return size;
+   }
+
+   byte[] bytes() {
+      return buf;
+   }
+
+   private void putVarint(int val) {
+      ensure(5);
+      while ((val & ~0x7F) != 0) {
+         buf[size++] = (byte) ((val & 0x7F) | 0x80);
+         val >>>= 7;
+      }
+      buf[size++] = (byte) val;
+   }
+
+   private void ensure(int n) {
+      if (size + n > buf.length) {
+         byte[] newbuf = new byte[Math.max(2*buf.length, size + n)];
+         System.arraycopy(buf, 0, newbuf, 0, size);
+         buf = newbuf;
+      }
+   }
+}
@@ -1,66 +1,80 @@
 package simpledb.log;
 
 import static simpledb.file.Page.INT_SIZE;
+import simpledb.server.SimpleDB;
 import simpledb.file.*;
 import java.util.Iterator;
 
 /**
  * A class that provides the ability to move through the
  * records of the log file in reverse order.
- * 
+ * The iterator stops at the first block of the log
+ * that has not been deleted.
+ *
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
+   private LogMgr logMgr;
+   private int blknum, firstblk;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
    private Page pg = new Page();
    private int currentrec;
-   
+   private BasicLogRecord rec = new BasicLogRecord();
+
    /**
     * Creates an iterator for the records in the log file,
     * positioned after the last log record.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logMgr the log manager
+    * @param blknum the number of the last block of the log
+    * @param firstblk the number of the first block of the log
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
+   LogIterator(LogMgr logMgr, int blknum, int firstblk) {
+      this.logMgr = logMgr;
+      this.blknum = blknum;
+      this.firstblk = firstblk;
+      pg.read(logMgr.logBlock(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
-   
+
    /**
     * Determines if the current log record
     * is the earliest record in the log file.
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      return currentrec>0 || blknum>firstblk;
    }
-   
+
    /**
     * Moves to the next log record in reverse order.
     * If the current log record is the earliest in its block,
     * then the method moves to the next oldest block,
     * and returns the log record from there.
+    * The returned object is reused by the following call.
     * @return the next earliest log record
     */
    public BasicLogRecord next() {
-      if (currentrec == 0) 
+      if (currentrec == 0)
          moveToNextBlock();
+      int end = currentrec;
       currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      rec.load(pg, currentrec+INT_SIZE, end, (long) blknum * blocksize + end + INT_SIZE);
+      return rec;
    }
-   
+
    public void remove() {
       throw new UnsupportedOperationException();
    }
-   
+
    /**
     * Moves to the next log block in reverse order,
     * and positions it after the last record in that block.
     */
    private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
+      blknum--;
+      pg.read(logMgr.logBlock(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
 }
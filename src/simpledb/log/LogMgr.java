@@ -3,16 +3,64 @@ package simpledb.log;
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
 import static simpledb.file.Page.*;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The low-level log manager.
  * This log manager is responsible for writing log records
  * into a log file.
- * A log record can be any sequence of integer and string values.
+ * A log record can be any sequence of integer and string values,
+ * encoded compactly by a {@link LogBuffer}.
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * <P>
+ * Records are appended to a ring of log pages in memory.
+ * When a record does not fit in the current page, the page is
+ * sealed and the next page of the ring becomes current.
+ * A background {@link LogWriter} writes the sealed pages to disk,
+ * and also writes a copy of the current page when a flush asks for it;
+ * the pages waiting to be written are written with a single write.
+ * Thus an append waits for the disk only when every page of the ring
+ * is waiting to be written,
+ * and the flushes of concurrent commits are grouped into one write.
+ * <P>
+ * Appends are not locked.
+ * A thread claims the space for its record by atomically advancing
+ * the end of the log, and then fills in its record while other
+ * threads fill in theirs.
+ * The record is then published by adding its size to the count
+ * of filled bytes of its page; a thread never waits for
+ * the records of other threads.
+ * A page whose filled bytes equal the space claimed in it holds
+ * only complete records: a page that the log has moved past is
+ * then sealed, and the current page can then be copied by a flush.
+ * Only the log writer, the thread that moves the log
+ * to the next page, and the thread that seals a page
+ * lock the log manager.
+ * <P>
+ * The LSN of a log record is the byte offset in the log file
+ * just past the end of the record; it increases with every record.
+ * A record is on disk once the log has been flushed up to its LSN.
+ * Each block of the log starts with the position of its last record,
+ * and each record ends with the position of the previous one.
+ * <P>
+ * The log is stored in segment files of {@link #SEGMENT_BLOCKS} blocks,
+ * named by the name of the log followed by the number of the segment;
+ * block b of the log is thus block b % SEGMENT_BLOCKS of segment
+ * b / SEGMENT_BLOCKS.
+ * Once the recovery manager no longer needs the early records of the log,
+ * it calls {@link #truncate(long) truncate}, which deletes the
+ * segments holding them.
+ * <P>
+ * The version of the log format, {@link #FORMAT_VERSION}, is recorded in
+ * the header of the database when the log is created.
+ * A log of any other format, including the single log file of
+ * earlier releases, cannot be read, and the log manager refuses to open it.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
@@ -22,15 +70,69 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     */
    public static final int LAST_POS = 0;
 
+   /**
+    * The number of pages in the ring of a log manager
+    * created without specifying it.
+    */
+   public static final int DEFAULT_PAGES = 8;
+
+   /**
+    * The number of blocks in each segment file of the log.
+    */
+   public static final int SEGMENT_BLOCKS = 1024;
+
+   /**
+    * The version of the format of the log:
+    * segment files, byte-offset LSNs, records encoded by a {@link LogBuffer},
+    * and the records of ARIES recovery and non-quiescent checkpoints.
+    * Databases that record no version have a log of an earlier format.
+    */
+   public static final int FORMAT_VERSION = 1;
+
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
-   private int currentpos;
+   private int blocksize;
+   private long commitDelay;  // microseconds
+   private volatile int firstblk;  // the first block of the log not yet deleted
+
+   // Block b of the log is held by page b % pages.length of the ring.
+   // The pages from the first unwritten block to the page holding
+   // the end of the log are in use; the sealed ones among them
+   // hold complete records and can be written.
+   private Page[] pages;
+   private int unwritten;   // the first block not yet written as a sealed page
+   private int sealed = 0;  // the number of sealed pages from the first unwritten block
+   private boolean[] full;  // whether the page of each ring slot is sealed
+   private AtomicIntegerArray filled;  // the bytes of the published records of each page
+   private AtomicIntegerArray closed;  // the bytes claimed in each page once the log has moved past it, else -1
+   private AtomicLong tail;  // the end of the space claimed by appends
+   private volatile boolean writerWaiting = false;  // the log writer waits for records to be published
+
+   private long flushedLSN;       // the log is on disk up to here
+   private long requestedLSN = 0; // a flush up to here has been requested
+   private RuntimeException writeError = null;  // the most recent write failure
+   private int writeFailures = 0;
+   private Page tailcopy = new Page();  // used only by the log writer
+
+   /**
+    * Creates the manager for the specified log file,
+    * with the default number of log pages and no group commit delay.
+    * @param logfile the name of the log file
+    * @see #LogMgr(String, int, long)
+    */
+   public LogMgr(String logfile) {
+      this(logfile, DEFAULT_PAGES, 0);
+   }
 
    /**
-    * Creates the manager for the specified log file.
-    * If the log file does not yet exist, it is created
+    * Creates the manager for the specified log,
+    * and starts its log writer.
+    * The existing segments of the log are found in the database directory.
+    * If the log has no segments, its first segment is created
     * with an empty first block.
+    * If the database holds a log of another format than
+    * {@link #FORMAT_VERSION}, the log cannot be recovered and
+    * an exception is thrown; otherwise the format is recorded
+    * in the header of the database.
     * This constructor depends on a {@link FileMgr} object
     * that it gets from the method
     * {@link simpledb.server.SimpleDB#fileMgr()}.
@@ -39,28 +141,97 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * {@link simpledb.server.SimpleDB#initFileMgr(String)}
     * is called first.
     * @param logfile the name of the log file
+    * @param numpages the number of pages in the ring (at least 2)
+    * @param commitDelay the microseconds that a commit waits for other commits
     */
-   public LogMgr(String logfile) {
+   public LogMgr(String logfile, int numpages, long commitDelay) {
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      this.commitDelay = commitDelay;
+      blocksize = SimpleDB.fileMgr().blockSize();
+      pages = new Page[Math.max(2, numpages)];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = new Page();
+      full = new boolean[pages.length];
+      filled = new AtomicIntegerArray(pages.length);
+      closed = new AtomicIntegerArray(pages.length);
+      for (int i=0; i<pages.length; i++)
+         closed.set(i, -1);
+      FileMgr fm = SimpleDB.fileMgr();
+      int firstseg = -1, lastseg = -1;
+      for (String filename : fm.fileNames(logfile + ".")) {
+         int seg = segmentNumber(filename);
+         if (seg >= 0) {
+            if (firstseg < 0 || seg < firstseg)
+               firstseg = seg;
+            lastseg = Math.max(lastseg, seg);
+         }
+      }
+      if (fm.logFormat() != FORMAT_VERSION) {
+         boolean oldlog = fm.fileNames(logfile).contains(logfile);
+         if (oldlog || lastseg >= 0)
+            throw new RuntimeException("the log " + logfile + " has format "
+                  + fm.logFormat() + " instead of " + FORMAT_VERSION
+                  + "; recover the database with the release that wrote it");
+         fm.setLogFormat(FORMAT_VERSION);
+      }
+      firstblk = Math.max(firstseg, 0) * SEGMENT_BLOCKS;
+      int logsize = firstblk;  // the number of blocks, including deleted ones
+      if (lastseg >= 0)
+         logsize = lastseg * SEGMENT_BLOCKS + fm.size(segmentName(lastseg));
+      long end;
+      if (logsize <= firstblk) {
+         Page pg = pageFor(firstblk);
+         pg.setInt(LAST_POS, 0);
+         pg.write(logBlock(firstblk));
+         end = (long) firstblk * blocksize + INT_SIZE;
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
-         currentpos = getLastRecordPosition() + INT_SIZE;
+         Page pg = pageFor(logsize - 1);
+         pg.read(logBlock(logsize - 1));
+         end = (long) (logsize-1) * blocksize + pg.getInt(LAST_POS) + INT_SIZE;
       }
+      tail = new AtomicLong(end);
+      unwritten = blockOf(end);
+      filled.set(slotOf(unwritten), (int) (end % blocksize) - INT_SIZE);
+      flushedLSN = end;
+      new LogWriter(this).start();
    }
 
    /**
     * Ensures that the log records corresponding to the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
+    * The method asks the log writer to write the log,
+    * and waits until it has done so.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public synchronized void flush(long lsn) {
+      if (lsn <= flushedLSN)
+         return;
+      if (lsn > requestedLSN) {
+         requestedLSN = lsn;
+         notifyAll();
+      }
+      int failures = writeFailures;
+      while (flushedLSN < lsn) {
+         if (writeFailures != failures)
+            throw writeError;
+         waitForWriter();
+      }
+   }
+
+   /**
+    * Ensures that the commit or rollback record having
+    * the specified LSN has been written to disk, as by
+    * {@link #flush(long)}, except that the flush is not requested
+    * until the group commit delay has passed,
+    * so that the records of concurrent commits are written with it.
+    * @param lsn the LSN of a commit or rollback record
+    */
+   public void flushCommit(long lsn) {
+      if (commitDelay > 0)
+         LockSupport.parkNanos(commitDelay * 1000);
+      flush(lsn);
    }
 
    /**
@@ -68,105 +239,366 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * which will be returned in reverse order starting with the most recent.
     * @see java.lang.Iterable#iterator()
     */
-   public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+   public Iterator<BasicLogRecord> iterator() {
+      long lsn = tail.get();
+      flush(lsn);
+      return new LogIterator(this, blockOf(lsn), firstblk);
+   }
+
+   /**
+    * Returns an iterator for the log records having an LSN
+    * of at least the specified LSN, which will be returned
+    * in the order they were appended.
+    * Records that are appended after the iterator is created
+    * are not returned.
+    * @param fromLSN the LSN of the earliest record to return
+    * @return an iterator running forward through the log
+    */
+   public Iterator<BasicLogRecord> iterator(long fromLSN) {
+      long lsn = tail.get();
+      flush(lsn);
+      int first = Math.max(firstblk, blockOf(Math.max(fromLSN, 1) - 1));
+      return new ForwardLogIterator(this, fromLSN, first, blockOf(lsn));
+   }
+
+   /**
+    * Returns the LSN of the end of the completed log.
+    * Every log record having a smaller LSN has been appended,
+    * and every record being appended will have a larger LSN.
+    * While records of the current page are being filled in,
+    * the completed log ends before that page.
+    * @return the LSN of the end of the completed log
+    */
+   public synchronized long currentLSN() {
+      return completedLSN();
+   }
+
+   /**
+    * Returns the largest number of bytes that the values
+    * of a log record can occupy, which is somewhat smaller
+    * than a block.
+    * @return the maximum size of a log record
+    */
+   public int maxRecordSize() {
+      return blocksize - 3*INT_SIZE;
+   }
+
+   /**
+    * Deletes the segments of the log that lie wholly before
+    * the log record having the specified LSN.
+    * The records are no longer returned by a log iterator.
+    * Only records that have been written to disk are deleted.
+    * @param lsn the LSN of the earliest log record to keep
+    */
+   public void truncate(long lsn) {
+      int oldfirst, newfirst;
+      synchronized (this) {
+         lsn = Math.min(lsn, flushedLSN);
+         oldfirst = firstblk;
+         newfirst = (blockOf(lsn - 1) / SEGMENT_BLOCKS) * SEGMENT_BLOCKS;
+         if (newfirst <= oldfirst)
+            return;
+         firstblk = newfirst;
+      }
+      try {
+         for (int seg = oldfirst / SEGMENT_BLOCKS; seg < newfirst / SEGMENT_BLOCKS; seg++)
+            SimpleDB.fileMgr().deleteFile(segmentName(seg));
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot delete log segment");
+      }
+   }
+
+   /**
+    * Returns the disk block holding the specified block of the log.
+    * @param blknum the number of the block in the log
+    * @return the block of the segment file
+    */
+   Block logBlock(int blknum) {
+      return new Block(segmentName(blknum / SEGMENT_BLOCKS), blknum % SEGMENT_BLOCKS);
    }
 
    /**
     * Appends a log record to the file.
-    * The record contains an arbitrary array of strings and integers.
+    * The record contains an arbitrary array of strings and integers,
+    * which are encoded as by {@link LogBuffer}.
+    * This method boxes the integers of the record, and so
+    * the recovery manager calls {@link #append(LogBuffer)} instead.
+    * @param rec the list of values
+    * @return the LSN of the record
+    */
+   public long append(Object[] rec) {
+      LogBuffer buf = LogBuffer.forThread();
+      for (Object obj : rec) {
+         if (obj instanceof String)
+            buf.putString((String)obj);
+         else
+            buf.putInt((Integer)obj);
+      }
+      return append(buf);
+   }
+
+   /**
+    * Appends the log record encoded in the specified buffer to the file.
     * The method also writes an integer to the end of each log record whose value
     * is the offset of the corresponding integer for the previous log record.
     * These integers allow log records to be read in reverse order.
-    * @param rec the list of values
-    * @return the LSN of the final value
+    * The record is published even if filling it in fails,
+    * so that the page holding it can still be sealed.
+    * @param buf the encoded record
+    * @return the LSN of the record
     */
-   public synchronized int append(Object[] rec) {
-      int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
-      for (Object obj : rec)
-         recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
+   public long append(LogBuffer buf) {
+      int recsize = buf.size() + INT_SIZE;  // 4 bytes for the integer that points to the previous log record
+      if (buf.size() > maxRecordSize())
+         throw new IllegalArgumentException("log record of " + buf.size()
+               + " bytes does not fit in a block");
+      long start = reserve(recsize);
+      int blknum = blockOf(start);
+      try {
+         Page pg = pageFor(blknum);
+         int startpos = (int) (start % blocksize);
+         pg.setBytes(startpos, buf.bytes(), buf.size());
+         // the previous record in the page ends just before this one
+         pg.setInt(startpos + buf.size(), startpos - INT_SIZE);
       }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
+      finally {
+         publish(blknum, recsize);
+      }
+      return start + recsize;
    }
 
    /**
-    * Adds the specified value to the page at the position denoted by
-    * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * Writes the sealed pages to disk, together with a copy of
+    * the current page if a flush has asked for it,
+    * waiting until there is something to write.
+    * The copy includes only the records of the completed log,
+    * and is made only if the completed log has grown.
+    * The pages are written without holding the lock,
+    * using a single write for each segment file,
+    * and the segment files are then forced.
+    * If the write fails, the waiting threads are told of the failure,
+    * and the exception is thrown.
+    * This method is called repeatedly by the {@link LogWriter}.
+    * @throws InterruptedException if the writer is interrupted while waiting
     */
-   private void appendVal(Object val) {
-      if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
-      else
-         mypage.setInt(currentpos, (Integer)val);
-      currentpos += size(val);
+   void writeLog() throws InterruptedException {
+      Page[] towrite;
+      int startblk;
+      long upto;
+      synchronized (this) {
+         // set before looking at the published records, so that
+         // a record published meanwhile notifies the writer
+         writerWaiting = true;
+         long end = completedLSN();
+         while (sealed == 0 && (requestedLSN <= flushedLSN || end <= flushedLSN)) {
+            wait();
+            end = completedLSN();
+         }
+         writerWaiting = false;
+         startblk = unwritten;
+         int currentblk = startblk + sealed;
+         long tailstart = (long) currentblk * blocksize;
+         boolean copyTail = requestedLSN > tailstart && end > flushedLSN;
+         towrite = new Page[sealed + (copyTail ? 1 : 0)];
+         for (int i=0; i<sealed; i++)
+            towrite[i] = pageFor(startblk + i);
+         if (copyTail) {
+            tailcopy.copyFrom(pageFor(currentblk));
+            tailcopy.setInt(LAST_POS, (int) (end - tailstart) - INT_SIZE);
+            towrite[sealed] = tailcopy;
+            upto = end;
+         }
+         else
+            upto = tailstart;
+      }
+      if (towrite.length == 0)
+         return;
+      try {
+         // a single write per segment
+         for (int i=0; i<towrite.length; ) {
+            int blknum = startblk + i;
+            int n = Math.min(towrite.length - i, SEGMENT_BLOCKS - blknum % SEGMENT_BLOCKS);
+            Block blk = logBlock(blknum);
+            Page.writeRange(blk.fileName(), blk.number(), Arrays.copyOfRange(towrite, i, i+n));
+            SimpleDB.fileMgr().force(blk.fileName());
+            i += n;
+         }
+      }
+      catch (RuntimeException e) {
+         synchronized (this) {
+            writeError = e;
+            writeFailures++;
+            notifyAll();
+         }
+         throw e;
+      }
+      synchronized (this) {
+         int written = towrite.length;
+         if (towrite[written-1] == tailcopy)
+            written--;
+         for (int i=0; i<written; i++)
+            full[slotOf(startblk + i)] = false;
+         unwritten += written;
+         sealed -= written;
+         flushedLSN = Math.max(flushedLSN, upto);
+         notifyAll();
+      }
    }
 
    /**
-    * Calculates the size of the specified integer or string.
-    * @param val the value
-    * @return the size of the value, in bytes
+    * Claims space for a record of the specified size at the end of the log,
+    * moving the log to the next page if the record does not fit.
+    * @param recsize the size of the record
+    * @return the log address of the start of the claimed space
     */
-   private int size(Object val) {
-      if (val instanceof String) {
-         String sval = (String) val;
-         return STR_SIZE(sval.length());
+   private long reserve(int recsize) {
+      while (true) {
+         long t = tail.get();
+         if (t % blocksize + recsize < blocksize) {
+            if (tail.compareAndSet(t, t + recsize))
+               return t;
+         }
+         else
+            moveToNextPage(t);
       }
-      else
-         return INT_SIZE;
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
-    * @return the LSN of the most recent log record
+    * Moves the end of the log from the specified address
+    * to the first record position of the next page, unless
+    * another thread has moved the end of the log in the meantime.
+    * If every other page of the ring is still in use,
+    * the method first waits for the log writer.
+    * The old page is closed, and is sealed
+    * as soon as its records have been published,
+    * which may be done by the last thread to publish one.
+    * @param t the end of the log, in a page that has no room
     */
-   private int currentLSN() {
-      return currentblk.number();
+   private synchronized void moveToNextPage(long t) {
+      int blknum = blockOf(t);
+      int failures = writeFailures;
+      while (blknum + 1 - unwritten >= pages.length) {
+         if (writeFailures != failures)
+            throw writeError;
+         waitForWriter();
+      }
+      if (blockOf(tail.get()) != blknum)
+         return;  // another thread has moved the log
+      // the next page is not in use, and is reset before any record can be claimed in it
+      int nextslot = slotOf(blknum + 1);
+      filled.set(nextslot, 0);
+      closed.set(nextslot, -1);
+      long next = (long) (blknum + 1) * blocksize + INT_SIZE;
+      if (!tail.compareAndSet(t, next))
+         return;
+      int claimed = (int) (t % blocksize) - INT_SIZE;
+      closed.set(slotOf(blknum), claimed);
+      if (filled.get(slotOf(blknum)) == claimed)
+         seal(blknum);
    }
 
    /**
-    * Writes the current page to the log file.
+    * Publishes a record that has been filled in, by adding its size
+    * to the filled bytes of its page.
+    * If the log has moved past the page and this was the last record
+    * being filled in, the page is sealed.
+    * Otherwise the log writer is notified if it is waiting for
+    * the records of the current page.
+    * @param blknum the block of the log holding the record
+    * @param recsize the size of the record
     */
-   private void flush() {
-      mypage.write(currentblk);
+   private void publish(int blknum, int recsize) {
+      int slot = slotOf(blknum);
+      // the page cannot be reused before its records are published
+      int f = filled.addAndGet(slot, recsize);
+      if (f == closed.get(slot))
+         seal(blknum);
+      else if (writerWaiting) {
+         synchronized (this) {
+            notifyAll();
+         }
+      }
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Seals the specified page of the log, whose records have all
+    * been published, and notifies the log writer.
+    * Both the thread that closed the page and the thread that
+    * published its last record may call this method;
+    * a page that is already sealed is ignored.
+    * Pages can be sealed out of order, but are written in order.
+    * @param blknum a closed block of the log
     */
-   private void appendNewBlock() {
-      setLastRecordPosition(0);
-      currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   private synchronized void seal(int blknum) {
+      int slot = slotOf(blknum);
+      if (blknum < unwritten || full[slot])
+         return;
+      pageFor(blknum).setInt(LAST_POS, closed.get(slot));
+      full[slot] = true;
+      while (full[slotOf(unwritten + sealed)])
+         sealed++;
+      notifyAll();
    }
 
    /**
-    * Sets up a circular chain of pointers to the records in the page.
-    * There is an integer added to the end of each log record
-    * whose value is the offset of the previous log record.
-    * The first four bytes of the page contain an integer whose value
-    * is the offset of the integer for the last log record in the page.
+    * Returns the end of the completed log,
+    * before which every claimed record has been published.
+    * If the first unsealed page is the current page and
+    * all of the records claimed in it have been published,
+    * the completed log ends at the end of the log;
+    * otherwise it ends at the first record position of that page.
+    * The method must be called while holding the lock.
+    * @return the LSN of the end of the completed log
     */
-   private void finalizeRecord() {
-      mypage.setInt(currentpos, getLastRecordPosition());
-      setLastRecordPosition(currentpos);
-      currentpos += INT_SIZE;
+   private long completedLSN() {
+      int blknum = unwritten + sealed;
+      long start = (long) blknum * blocksize + INT_SIZE;
+      long t = tail.get();
+      if (blockOf(t) != blknum)
+         return start;
+      int f = filled.get(slotOf(blknum));
+      // a record claimed after t changes the end of the log before it is published
+      if (tail.get() == t && f == t - start)
+         return t;
+      return start;
+   }
+
+   private void waitForWriter() {
+      try {
+         wait();
+      }
+      catch(InterruptedException e) {
+         throw new RuntimeException("interrupted while waiting for the log writer");
+      }
+   }
+
+   private String segmentName(int seg) {
+      return logfile + "." + seg;
+   }
+
+   /**
+    * Returns the number of the log segment having the specified
+    * file name, or -1 if the file is not a log segment.
+    */
+   private int segmentNumber(String filename) {
+      try {
+         return Integer.parseInt(filename.substring(logfile.length() + 1));
+      }
+      catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private int blockOf(long lsn) {
+      return (int) (lsn / blocksize);
    }
 
-   private int getLastRecordPosition() {
-      return mypage.getInt(LAST_POS);
+   private Page pageFor(int blknum) {
+      return pages[slotOf(blknum)];
    }
 
-   private void setLastRecordPosition(int pos) {
-      mypage.setInt(LAST_POS, pos);
+   private int slotOf(int blknum) {
+      return blknum % pages.length;
    }
 }
@@ -0,0 +1,44 @@
+package simpledb.log;
+
+/**
+ * A background thread that writes the pages of the log to disk,
+ * so that appending a log record does not wait for a disk write.
+ * The thread writes a page as soon as it is sealed,
+ * and writes the current page whenever a flush asks for it.
+ */
+class LogWriter extends Thread {
+   private static final long RETRY_DELAY = 100; // milliseconds
+   
+   private LogMgr logMgr;
+
+   /**
+    * Creates a writer for the specified log manager.
+    * @param logMgr the log manager
+    */
+   LogWriter(LogMgr logMgr) {
+      super("log writer");
+      this.logMgr = logMgr;
+      setDaemon(true);
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            logMgr.writeLog();
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(RuntimeException e) {
+            // the waiting threads have been told of the failure;
+            // the write is retried after a pause
+            try {
+               Thread.sleep(RETRY_DELAY);
+            }
+            catch(InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }
+}
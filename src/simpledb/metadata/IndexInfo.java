@@ -1,7 +1,6 @@
 package simpledb.metadata;
 
 import static java.sql.Types.INTEGER;
-import static simpledb.file.Page.BLOCK_SIZE;
 
 import simpledb.index.Index;
 import simpledb.index.IndexType;
@@ -97,7 +96,7 @@ public class IndexInfo {
     public int blocksAccessed() {
         // TODO Change estimation to be relative to the index type
         TableInfo idxti = new TableInfo("", schema());
-        int rpb = BLOCK_SIZE / idxti.recordLength();
+        int rpb = tx.blockSize() / idxti.recordLength();
         int numblocks = si.recordsOutput() / rpb;
         // Call HashIndex.searchCost for hash indexing
         return HashIndex.searchCost(numblocks, rpb);
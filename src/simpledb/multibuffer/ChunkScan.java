@@ -2,6 +2,7 @@ package simpledb.multibuffer;
 
 import static java.sql.Types.INTEGER;
 import simpledb.tx.Transaction;
+import simpledb.buffer.AccessPattern;
 import simpledb.record.*;
 import simpledb.file.Block;
 import simpledb.query.*;
@@ -21,6 +22,9 @@ public class ChunkScan implements Scan {
    
    /**
     * Creates a chunk consisting of the specified pages. 
+    * The blocks of the chunk that are not in the buffer pool
+    * are read with a single read, and each record page
+    * takes over the pin of its block.
     * @param ti the metadata for the chunked table
     * @param startbnum the starting block number
     * @param endbnum  the ending block number
@@ -32,9 +36,10 @@ public class ChunkScan implements Scan {
       this.endbnum   = endbnum;
       this.sch = ti.schema();
       String filename = ti.fileName();
+      tx.pinRange(filename, startbnum, endbnum - startbnum + 1, AccessPattern.SEQUENTIAL);
       for (int i=startbnum; i<=endbnum; i++) {
          Block blk = new Block(filename, i);
-         pages.add(new RecordPage(blk, ti, tx));
+         pages.add(RecordPage.adoptPinned(blk, ti, tx));
       }
       beforeFirst();
    }
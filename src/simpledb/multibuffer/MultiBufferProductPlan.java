@@ -60,9 +60,9 @@ public class MultiBufferProductPlan implements Plan {
     */
    public int blocksAccessed() {
       // this guesses at the # of chunks
-      int avail = SimpleDB.bufferMgr().available();
+      int avail = SimpleDB.bufferMgr().availableForRange();
       int size = new MaterializePlan(rhs, tx).blocksAccessed();
-      int numchunks = size / avail;
+      int numchunks = size / Math.max(1, avail);
       return rhs.blocksAccessed() +
          (lhs.blocksAccessed() * numchunks);
    }
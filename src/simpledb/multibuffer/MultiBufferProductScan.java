@@ -18,6 +18,8 @@ public class MultiBufferProductScan implements Scan {
    
    /**
     * Creates the scan class for the product of the LHS scan and a table.
+    * The scan reads every block of the table, possibly many times,
+    * so it locks the whole table instead of its blocks.
     * @param lhsscan the LHS scan
     * @param ti the metadata for the RHS table
     * @param tx the current transaction
@@ -26,6 +28,7 @@ public class MultiBufferProductScan implements Scan {
       this.lhsscan = lhsscan;
       this.ti = ti;
       this.tx = tx;
+      tx.sLockFile(ti.fileName());
       filesize = tx.size(ti.fileName());
       chunksize = BufferNeeds.bestFactor(filesize);
       beforeFirst();
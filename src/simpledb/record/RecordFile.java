@@ -1,12 +1,26 @@
 package simpledb.record;
 
+import simpledb.buffer.AccessPattern;
 import simpledb.file.Block;
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 
 /**
  * Manages a file of records.
  * There are methods for iterating through the records
  * and accessing their contents.
+ * Blocks reached by moving through the file are pinned
+ * as sequential accesses, and blocks reached by RID or
+ * newly appended as random ones;
+ * all blocks of a temporary table are pinned as temporary.
+ * Once a scan moves from one block to the next, the
+ * following blocks of the file are prefetched,
+ * up to {@link SimpleDB#PREFETCH_DEPTH} blocks ahead.
+ * Since a file never shrinks, the size of the file is asked of
+ * the transaction, which locks the end of the file, only when
+ * the current block is the last block known to exist.
+ * Until then, the size read from the file manager without
+ * a lock is used as a lower bound.
  * @author Edward Sciore
  */
 public class RecordFile {
@@ -15,6 +29,9 @@ public class RecordFile {
    private String filename;
    private RecordPage rp;
    private int currentblknum;
+   private int knownSize;  // the size of the file when last checked
+   private int prefetchedTo = 0; // blocks below this have been prefetched
+   private AccessPattern scanPattern, appendPattern;
    
    /**
     * Constructs an object to manage a file of records.
@@ -26,9 +43,13 @@ public class RecordFile {
       this.ti = ti;
       this.tx = tx;
       filename = ti.fileName();
-      if (tx.size(filename) == 0)
+      boolean istemp = filename.startsWith("temp");
+      scanPattern   = istemp ? AccessPattern.TEMP : AccessPattern.SEQUENTIAL;
+      appendPattern = istemp ? AccessPattern.TEMP : AccessPattern.RANDOM;
+      knownSize = SimpleDB.fileMgr().size(filename);
+      if (knownSize == 0 && tx.size(filename) == 0)
          appendBlock();
-      moveTo(0);
+      moveTo(0, scanPattern);
    }
    
    /**
@@ -43,7 +64,8 @@ public class RecordFile {
     * will wind up at the first record. 
     */
    public void beforeFirst() {
-      moveTo(0);
+      prefetchedTo = 0;
+      moveTo(0, scanPattern);
    }
    
    /**
@@ -57,7 +79,8 @@ public class RecordFile {
             return true;
          if (atLastBlock())
             return false;
-         moveTo(currentblknum + 1);
+         moveTo(currentblknum + 1, scanPattern);
+         readAhead(knownSize);
       }
    }
    
@@ -123,7 +146,7 @@ public class RecordFile {
          if (atLastBlock()) {
             appendBlock();
           }
-         moveTo(currentblknum + 1);
+         moveTo(currentblknum + 1, scanPattern);
       }
    }
    
@@ -133,7 +156,8 @@ public class RecordFile {
     * @param rid a record identifier
     */
    public void moveToRid(RID rid) {
-      moveTo(rid.blockNumber());
+      prefetchedTo = 0;
+      moveTo(rid.blockNumber(), AccessPattern.RANDOM);
       rp.moveToId(rid.id());
    }
    
@@ -146,20 +170,38 @@ public class RecordFile {
       return new RID(currentblknum, id);
    }
    
-   private void moveTo(int b) {
+   private void moveTo(int b, AccessPattern pattern) {
       if (rp != null)
          rp.close();
       currentblknum = b;
       Block blk = new Block(filename, currentblknum);
-      rp = new RecordPage(blk, ti, tx);
+      rp = new RecordPage(blk, ti, tx, pattern);
+   }
+   
+   /**
+    * Prefetches the blocks following the current one
+    * that have not already been requested.
+    * @param size the number of blocks in the file
+    */
+   private void readAhead(int size) {
+      int start = Math.max(currentblknum + 1, prefetchedTo);
+      int end = Math.min(currentblknum + 1 + SimpleDB.PREFETCH_DEPTH, size);
+      if (start < end) {
+         tx.prefetch(filename, start, end - start);
+         prefetchedTo = end;
+      }
    }
    
    private boolean atLastBlock() {
-      return currentblknum == tx.size(filename) - 1;
+      if (currentblknum < knownSize - 1)
+         return false;
+      knownSize = tx.size(filename);
+      return currentblknum == knownSize - 1;
    }
    
    private void appendBlock() {
         RecordFormatter fmtr = new RecordFormatter(ti);
-        tx.append(filename, fmtr);
+        Block blk = tx.append(filename, fmtr, appendPattern);
+        knownSize = Math.max(knownSize, blk.number() + 1);
    }
 }
\ No newline at end of file
@@ -1,11 +1,21 @@
 package simpledb.record;
 
 import static simpledb.file.Page.*;
+import simpledb.buffer.AccessPattern;
 import simpledb.file.Block;
 import simpledb.tx.Transaction;
 
 /**
  * Manages the placement and access of records in a block.
+ * The fields of a record are read and written under a lock
+ * on the record, so that transactions can access different
+ * records of the same block concurrently.
+ * An insertion searches for an empty slot under a lock on the
+ * whole block instead, since a slot emptied by a transaction
+ * that has not committed must not be reused.
+ * A scan that finds a slot empty releases its lock on that slot,
+ * so it does not keep a lock for each empty slot it passes;
+ * its lock on the block keeps the slot from being filled.
  * @author Edward Sciore
  */
 public class RecordPage {
@@ -24,12 +34,43 @@ public class RecordPage {
      * @param tx the transaction performing the operations
      */
    public RecordPage(Block blk, TableInfo ti, Transaction tx) {
+      this(blk, ti, tx, AccessPattern.RANDOM);
+   }
+   
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified access pattern.
+     * The current record is set to be prior to the first one.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param pattern how the block is being accessed
+     */
+   public RecordPage(Block blk, TableInfo ti, Transaction tx, AccessPattern pattern) {
+      this(blk, ti, tx, pattern, true);
+   }
+   
+   /**
+    * Creates the record manager for a block that the transaction
+    * has already pinned, such as a block of a range pinned by
+    * {@link Transaction#pinRange(String, int, int, AccessPattern)}.
+    * The manager takes over that pin, and releases it when it is closed.
+    * @param blk a reference to the pinned disk block
+    * @param ti the table's metadata
+    * @param tx the transaction performing the operations
+    * @return the record manager for the block
+    */
+   public static RecordPage adoptPinned(Block blk, TableInfo ti, Transaction tx) {
+      return new RecordPage(blk, ti, tx, null, false);
+   }
+   
+   private RecordPage(Block blk, TableInfo ti, Transaction tx, AccessPattern pattern, boolean pin) {
       this.blk = blk;
       this.ti = ti;
       this.tx = tx;
       slotsize = ti.recordLength() + INT_SIZE;
-      tx.pin(blk);
-  }
+      if (pin)
+         tx.pin(blk, pattern);
+   }
    
    /**
     * Closes the manager, by unpinning the block.
@@ -57,7 +98,7 @@ public class RecordPage {
     */
    public int getInt(String fldname) {
       int position = fieldpos(fldname);
-      return tx.getInt(blk, position);
+      return tx.getRecordInt(blk, currentslot, position);
    }
    
    /**
@@ -68,7 +109,7 @@ public class RecordPage {
     */
    public String getString(String fldname) {
       int position = fieldpos(fldname);
-      return tx.getString(blk, position);
+      return tx.getRecordString(blk, currentslot, position);
    }
    
    /**
@@ -79,7 +120,7 @@ public class RecordPage {
     */
    public void setInt(String fldname, int val) {
       int position = fieldpos(fldname);
-      tx.setInt(blk, position, val);
+      tx.setRecordInt(blk, currentslot, position, val);
    }
    
    /**
@@ -90,7 +131,7 @@ public class RecordPage {
     */
    public void setString(String fldname, String val) {
       int position = fieldpos(fldname);
-      tx.setString(blk, position, val);
+      tx.setRecordString(blk, currentslot, position, val);
    }
    
    /**
@@ -101,7 +142,7 @@ public class RecordPage {
     */
    public void delete() {
       int position = currentpos();
-      tx.setInt(blk, position, EMPTY);
+      tx.setRecordInt(blk, currentslot, position, EMPTY);
    }
    
    /**
@@ -146,15 +187,19 @@ public class RecordPage {
    }
    
    private boolean isValidSlot() {
-      return currentpos() + slotsize <= BLOCK_SIZE;
+      return currentpos() + slotsize <= tx.blockSize();
    }
    
    private boolean searchFor(int flag) {
       currentslot++;
       while (isValidSlot()) {
          int position = currentpos();
-         if (tx.getInt(blk, position) == flag)
+         int val = (flag == EMPTY) ? tx.getInt(blk, position)
+                                   : tx.getRecordInt(blk, currentslot, position);
+         if (val == flag)
             return true;
+         if (flag == INUSE)
+            tx.releaseRecord(blk, currentslot);
          currentslot++;
       }
       return false;
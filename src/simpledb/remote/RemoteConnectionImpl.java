@@ -11,6 +11,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
    private Transaction tx;
+   private boolean readOnly = false;
    
    /**
     * Creates a remote connection
@@ -38,6 +39,27 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
       tx.commit();
    }
    
+   /**
+    * Puts the connection in read-only mode, or takes it out.
+    * The current transaction is committed, and the next one
+    * begins in the specified mode.
+    * A read-only transaction reads a snapshot of the database
+    * without locking it, which suits long reporting queries.
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      this.readOnly = readOnly;
+      commit();
+   }
+   
+   /**
+    * Returns true if the connection is in read-only mode.
+    * @see simpledb.remote.RemoteConnection#isReadOnly()
+    */
+   public boolean isReadOnly() throws RemoteException {
+      return readOnly;
+   }
+   
 // The following methods are used by the server-side classes.
    
    /**
@@ -55,7 +77,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void commit() {
       tx.commit();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
    
    /**
@@ -64,7 +86,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void rollback() {
       tx.rollback();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
 }
 
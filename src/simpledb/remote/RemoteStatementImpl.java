@@ -3,6 +3,7 @@ package simpledb.remote;
 import java.util.logging.Level;
 
 import simpledb.tx.Transaction;
+import simpledb.file.IOStats;
 import simpledb.query.Plan;
 import simpledb.server.SimpleDB;
 import java.rmi.RemoteException;
@@ -30,7 +31,9 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
     public RemoteResultSet executeQuery(String qry) throws RemoteException {
         try {
             // Begin performance logging
-            long initIos = SimpleDB.fileMgr().getIos();
+            IOStats initIos = SimpleDB.fileMgr().stats().snapshot();
+            long initHits = SimpleDB.bufferMgr().getHits();
+            long initMisses = SimpleDB.bufferMgr().getMisses();
             long startTime = System.nanoTime();
             
             Transaction tx = rconn.getTransaction();
@@ -40,12 +43,16 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
             
             // Report performance logging
             float elapsedTime = ((float)(System.nanoTime() - startTime)/1000)/1000;
-            long iosDone = SimpleDB.fileMgr().getIos() - initIos;
+            IOStats iosDone = SimpleDB.fileMgr().stats().snapshot().minus(initIos);
+            long hits = SimpleDB.bufferMgr().getHits() - initHits;
+            long misses = SimpleDB.bufferMgr().getMisses() - initMisses;
             SimpleDB.getLogger().log(Level.INFO, 
                 "Query Executed" +
                 "\n\t" + qry +
                 "\n\tTime elapsed: " + elapsedTime + " ms" + 
-                "\n\tIOs done: " + iosDone);
+                "\n\tIOs done: " + iosDone.total() + " (" + iosDone + ")" +
+                "\n\tBuffer hits: " + hits + ", misses: " + misses +
+                " (" + SimpleDB.bufferMgr().getPolicyName() + " policy)");
             return results;
         }
         catch(RuntimeException e) {
@@ -63,7 +70,9 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
     public int executeUpdate(String cmd) throws RemoteException {
         try {
             // Begin performance logging
-            long initIos = SimpleDB.fileMgr().getIos();
+            IOStats initIos = SimpleDB.fileMgr().stats().snapshot();
+            long initHits = SimpleDB.bufferMgr().getHits();
+            long initMisses = SimpleDB.bufferMgr().getMisses();
             long startTime = System.nanoTime();
 
             Transaction tx = rconn.getTransaction();
@@ -72,12 +81,16 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
             
             // Report performance logging
             float elapsedTime = ((float)(System.nanoTime() - startTime)/1000)/1000;
-            long iosDone = SimpleDB.fileMgr().getIos() - initIos;
+            IOStats iosDone = SimpleDB.fileMgr().stats().snapshot().minus(initIos);
+            long hits = SimpleDB.bufferMgr().getHits() - initHits;
+            long misses = SimpleDB.bufferMgr().getMisses() - initMisses;
             SimpleDB.getLogger().log(Level.INFO, 
                 "Update Executed" +
                 "\n\t" + cmd +
                 "\n\tTime elapsed: " + elapsedTime + " ms" + 
-                "\n\tIOs done: " + iosDone);
+                "\n\tIOs done: " + iosDone.total() + " (" + iosDone + ")" +
+                "\n\tBuffer hits: " + hits + ", misses: " + misses +
+                " (" + SimpleDB.bufferMgr().getPolicyName() + " policy)");
             
             return result;
         }
@@ -18,6 +18,7 @@ import simpledb.planner.QueryPlanner;
 import simpledb.planner.SortQueryPlanner;
 import simpledb.planner.UpdatePlanner;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.RecoveryMgr;
 
 /**
  * The class that provides system-wide static global values. These values must
@@ -32,7 +33,28 @@ import simpledb.tx.Transaction;
  */
 public class SimpleDB {
     public static int BUFFER_SIZE = 32;
+    // Block size of a newly created database; an existing database
+    // keeps the block size stored in its header file
+    public static int BLOCK_SIZE = 4096;
+    // Whether the file manager uses memory-mapped I/O
+    public static boolean MAPPED_IO = false;
+    public static String BUFFER_POLICY = BufferMgr.LRU;
+    // Pages per second written by the background buffer flusher; 0 disables it
+    public static int FLUSH_RATE = 100;
+    // Blocks read ahead of a sequential scan; 0 disables prefetching
+    public static int PREFETCH_DEPTH = 2;
     public static String LOG_FILE = "simpledb.log";
+    // Pages in the ring of log pages kept in memory
+    public static int LOG_BUFFER_PAGES = LogMgr.DEFAULT_PAGES;
+    // Microseconds a commit waits so that other commits share its log write
+    public static long GROUP_COMMIT_DELAY = 0;
+    // Milliseconds between background checkpoints; 0 disables them
+    public static long CHECKPOINT_INTERVAL = 30000;
+    // Whether read-only transactions read a snapshot instead of locking
+    public static boolean SNAPSHOT_READS = true;
+    // Block and record locks a transaction holds on one file before they are
+    // replaced by a lock on the whole file; 0 disables escalation
+    public static int LOCK_ESCALATION = 128;
 
     public static String LOG_CS4432 = "cs4432.log";
 
@@ -45,7 +67,7 @@ public class SimpleDB {
 
     // CS 4432 Project 2
     // Logger for log file output
-    private static Logger logger;
+    private static Logger logger = Logger.getGlobal();
 
     /**
      * Passthrough
@@ -66,7 +88,42 @@ public class SimpleDB {
      *            The query planner to use
      */
     public static void init(String dirname, String initQueryPlanner) {
+        init(dirname, initQueryPlanner, BUFFER_POLICY);
+    }
+
+    /**
+     * Initializes the system with the specified buffer replacement policy.
+     *
+     * @param dirname
+     *            the name of the database directory
+     * @param initQueryPlanner
+     *            The query planner to use
+     * @param bufferPolicy
+     *            the name of the buffer replacement policy, one of
+     *            "lru", "clock", "lru-k" or "2q"
+     */
+    public static void init(String dirname, String initQueryPlanner, String bufferPolicy) {
+        init(dirname, initQueryPlanner, bufferPolicy, MAPPED_IO);
+    }
+
+    /**
+     * Initializes the system with the specified buffer replacement policy
+     * and file I/O mode.
+     *
+     * @param dirname
+     *            the name of the database directory
+     * @param initQueryPlanner
+     *            The query planner to use
+     * @param bufferPolicy
+     *            the name of the buffer replacement policy
+     * @param mappedIO
+     *            true if the file manager should use memory-mapped I/O
+     */
+    public static void init(String dirname, String initQueryPlanner, String bufferPolicy,
+            boolean mappedIO) {
         queryPlanner = initQueryPlanner;
+        BUFFER_POLICY = bufferPolicy;
+        MAPPED_IO = mappedIO;
 
         initFileLogAndBufferMgr(dirname);
         Transaction tx = new Transaction();
@@ -79,6 +136,10 @@ public class SimpleDB {
         }
         initMetadataMgr(isnew, tx);
         tx.commit();
+        if (FLUSH_RATE > 0)
+            bm.startFlusher(FLUSH_RATE);
+        if (CHECKPOINT_INTERVAL > 0)
+            RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL);
     }
 
     /**
@@ -103,7 +164,7 @@ public class SimpleDB {
      *            the name of the database directory
      */
     public static void initFileMgr(String dirname) {
-        fm = new FileMgr(dirname);
+        fm = new FileMgr(dirname, BLOCK_SIZE, MAPPED_IO);
     }
 
     /**
@@ -114,7 +175,7 @@ public class SimpleDB {
      */
     public static void initFileAndLogMgr(String dirname) {
         initFileMgr(dirname);
-        logm = new LogMgr(LOG_FILE);
+        logm = new LogMgr(LOG_FILE, LOG_BUFFER_PAGES, GROUP_COMMIT_DELAY);
 
         // CS 4432 Project 2
         // Added our own log file logging handlers
@@ -143,7 +204,7 @@ public class SimpleDB {
      */
     public static void initFileLogAndBufferMgr(String dirname) {
         initFileAndLogMgr(dirname);
-        bm = new BufferMgr(BUFFER_SIZE);
+        bm = new BufferMgr(BUFFER_SIZE, BUFFER_POLICY);
     }
 
     /**
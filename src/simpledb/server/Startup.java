@@ -6,7 +6,11 @@ import java.rmi.registry.*;
 public class Startup {
     public static void main(String args[]) throws Exception {
         // configure and initialize the database
-        if (args.length > 1) {
+        if (args.length > 3) {
+            SimpleDB.init(args[0], args[1], args[2], args[3].equals("mmap"));
+        } else if (args.length > 2) {
+            SimpleDB.init(args[0], args[1], args[2]);
+        } else if (args.length > 1) {
             SimpleDB.init(args[0], args[1]);
         } else {
             SimpleDB.init(args[0]);
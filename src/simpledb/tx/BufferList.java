@@ -28,22 +28,40 @@ class BufferList {
    /**
     * Pins the block and keeps track of the buffer internally.
     * @param blk a reference to the disk block
+    * @param pattern how the block is being accessed
     */
-   void pin(Block blk) {
-      Buffer buff = bufferMgr.pin(blk);
+   void pin(Block blk, AccessPattern pattern) {
+      Buffer buff = bufferMgr.pin(blk, pattern);
       buffers.put(blk, buff);
       pins.add(blk);
    }
    
+   /**
+    * Pins consecutive blocks of the specified file
+    * and keeps track of the buffers internally.
+    * @param filename the name of the file
+    * @param startblk the number of the first block
+    * @param count the number of blocks
+    * @param pattern how the blocks are being accessed
+    */
+   void pinRange(String filename, int startblk, int count, AccessPattern pattern) {
+      Buffer[] buffs = bufferMgr.pinRange(filename, startblk, count, pattern);
+      for (Buffer buff : buffs) {
+         buffers.put(buff.block(), buff);
+         pins.add(buff.block());
+      }
+   }
+   
    /**
     * Appends a new block to the specified file
     * and pins it.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
+    * @param pattern how the block is being accessed
     * @return a reference to the newly-created block
     */
-   Block pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = bufferMgr.pinNew(filename, fmtr);
+   Block pinNew(String filename, PageFormatter fmtr, AccessPattern pattern) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, pattern);
       Block blk = buff.block();
       buffers.put(blk, buff);
       pins.add(blk);
@@ -0,0 +1,12 @@
+package simpledb.tx;
+
+/**
+ * A runtime exception indicating that a read-only
+ * transaction tried to modify the database.
+ */
+@SuppressWarnings("serial")
+public class ReadOnlyException extends RuntimeException {
+   public ReadOnlyException(int txnum) {
+      super("transaction " + txnum + " is read-only");
+   }
+}
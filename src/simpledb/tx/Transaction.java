@@ -5,6 +5,7 @@ import simpledb.file.Block;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.concurrency.VersionMgr;
 
 /**
  * Provides transaction management for clients,
@@ -17,7 +18,9 @@ public class Transaction {
    private static final int END_OF_FILE = -1;
    private RecoveryMgr    recoveryMgr;
    private ConcurrencyMgr concurMgr;
+   private VersionMgr     versionMgr;
    private int txnum;
+   private boolean readOnly;
    private BufferList myBuffers = new BufferList();
    
    /**
@@ -33,9 +36,27 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
+      this(false);
+   }
+   
+   /**
+    * Creates a new transaction, which is read-only if specified.
+    * A read-only transaction cannot modify the database,
+    * although it can create and modify temporary tables;
+    * an attempt to do so throws a {@link ReadOnlyException}.
+    * If snapshot reads are enabled
+    * (see {@link simpledb.server.SimpleDB#SNAPSHOT_READS}),
+    * it reads the database as it was when the transaction began,
+    * and obtains no locks, so that it neither waits for
+    * writing transactions nor makes them wait.
+    * @param readOnly true if the transaction is read-only
+    */
+   public Transaction(boolean readOnly) {
       txnum       = nextTxNumber();
+      this.readOnly = readOnly;
       recoveryMgr = new RecoveryMgr(txnum);
-      concurMgr   = new ConcurrencyMgr();
+      concurMgr   = new ConcurrencyMgr(txnum);
+      versionMgr  = new VersionMgr(readOnly);
    }
 
     /**
@@ -46,14 +67,22 @@ public class Transaction {
         return txnum;
     }
    
+   /**
+    * Returns true if the transaction is read-only.
+    * @return true if the transaction is read-only
+    */
+   public boolean isReadOnly() {
+      return readOnly;
+   }
+   
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
+    * Writes and flushes a commit record to the log,
     * releases all locks, and unpins any pinned buffers.
     */
    public void commit() {
       recoveryMgr.commit();
+      versionMgr.commit();
       concurMgr.release();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " committed");
@@ -62,12 +91,12 @@ public class Transaction {
    /**
     * Rolls back the current transaction.
     * Undoes any modified values,
-    * flushes those buffers,
     * writes and flushes a rollback record to the log,
     * releases all locks, and unpins any pinned buffers.
     */
    public void rollback() {
       recoveryMgr.rollback();
+      versionMgr.rollback();
       concurMgr.release();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " rolled back");
@@ -75,7 +104,8 @@ public class Transaction {
    
    /**
     * Flushes all modified buffers.
-    * Then goes through the log, rolling back all
+    * Then goes through the log, redoing the changes
+    * that may not have reached the disk and rolling back all
     * uncommitted transactions.  Finally, 
     * writes a quiescent checkpoint record to the log.
     * This method is called only during system startup,
@@ -92,7 +122,51 @@ public class Transaction {
     * @param blk a reference to the disk block
     */
    public void pin(Block blk) {
-      myBuffers.pin(blk);
+      pin(blk, AccessPattern.RANDOM);
+   }
+   
+   /**
+    * Pins the specified block, telling the buffer manager
+    * how the block is being accessed.
+    * Blocks read by a sequential scan or belonging to a
+    * temporary table should be pinned with the corresponding
+    * hint, so that they do not evict the rest of the buffer pool.
+    * @param blk a reference to the disk block
+    * @param pattern how the block is being accessed
+    */
+   public void pin(Block blk, AccessPattern pattern) {
+      myBuffers.pin(blk, pattern);
+   }
+   
+   /**
+    * Pins consecutive blocks of the specified file,
+    * reading the blocks that are not in the buffer pool
+    * with a single read.
+    * Each block is pinned once, and must be unpinned
+    * like a block pinned by {@link #pin(Block, AccessPattern)}.
+    * @param filename the name of the file
+    * @param startblk the number of the first block
+    * @param count the number of blocks
+    * @param pattern how the blocks are being accessed
+    */
+   public void pinRange(String filename, int startblk, int count, AccessPattern pattern) {
+      if (count > 0)
+         myBuffers.pinRange(filename, startblk, count, pattern);
+   }
+   
+   /**
+    * Asks the buffer manager to read the specified blocks
+    * in the background, so that they are in the buffer pool
+    * by the time they are pinned.
+    * No locks are obtained; the blocks must still be pinned
+    * before they are accessed.
+    * @param filename the name of the file
+    * @param startblk the number of the first block
+    * @param count the number of blocks
+    */
+   public void prefetch(String filename, int startblk, int count) {
+      if (count > 0)
+         SimpleDB.bufferMgr().prefetch(filename, startblk, count);
    }
    
    /**
@@ -110,13 +184,17 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A transaction that reads a snapshot obtains no lock,
+    * and gets the value from its version manager instead.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the integer stored at that offset
     */
    public int getInt(Block blk, int offset) {
-      concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
+      if (versionMgr.readsSnapshot(blk))
+         return versionMgr.getInt(buff, offset);
+      concurMgr.sLock(blk);
       return buff.getInt(offset);
    }
    
@@ -125,21 +203,45 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A transaction that reads a snapshot obtains no lock,
+    * and gets the value from its version manager instead.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the string stored at that offset
     */
    public String getString(Block blk, int offset) {
-      concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
+      if (versionMgr.readsSnapshot(blk))
+         return versionMgr.getString(buff, offset);
+      concurMgr.sLock(blk);
       return buff.getString(offset);
    }
    
+   /**
+    * Compares the string value stored at the specified offset
+    * of the specified block with the specified string.
+    * The method first obtains an SLock on the block,
+    * then it calls the buffer to compare the value.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @param val the string to compare with
+    * @return a negative integer, zero, or a positive integer as the stored
+    * string is less than, equal to, or greater than val
+    */
+   public int compareString(Block blk, int offset, String val) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      if (versionMgr.readsSnapshot(blk))
+         return versionMgr.getString(buff, offset).compareTo(val);
+      concurMgr.sLock(blk);
+      return buff.compareString(offset, val);
+   }
+   
    /**
     * Stores an integer at the specified offset 
     * of the specified block.
     * The method first obtains an XLock on the block.
-    * It then reads the current value at that offset,
+    * It then saves the current value at that offset
+    * for the snapshots of read-only transactions,
     * puts it into an update log record, and 
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
@@ -149,17 +251,17 @@ public class Transaction {
     * @param val the value to be stored
     */
    public void setInt(Block blk, int offset, int val) {
+      checkWritable(blk.fileName());
       concurMgr.xLock(blk);
-      Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      writeInt(blk, offset, val);
    }
    
    /**
     * Stores a string at the specified offset 
     * of the specified block.
     * The method first obtains an XLock on the block.
-    * It then reads the current value at that offset,
+    * It then saves the current value at that offset
+    * for the snapshots of read-only transactions,
     * puts it into an update log record, and 
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
@@ -169,10 +271,115 @@ public class Transaction {
     * @param val the value to be stored
     */
    public void setString(Block blk, int offset, String val) {
+      checkWritable(blk.fileName());
       concurMgr.xLock(blk);
+      writeString(blk, offset, val);
+   }
+   
+   /**
+    * Returns the integer value stored at the specified offset
+    * of the record having the specified ID in the specified block.
+    * The method is like {@link #getInt(Block, int)}, except that
+    * it obtains an SLock on the record instead of the whole block,
+    * so that other transactions can modify the other records of the block.
+    * @param blk a reference to a disk block
+    * @param id the ID of the record within the block
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getRecordInt(Block blk, int id, int offset) {
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      if (versionMgr.readsSnapshot(blk))
+         return versionMgr.getInt(buff, offset);
+      concurMgr.sLock(blk, id);
+      return buff.getInt(offset);
+   }
+   
+   /**
+    * Returns the string value stored at the specified offset
+    * of the record having the specified ID in the specified block.
+    * The method obtains an SLock on the record instead of the whole block.
+    * @param blk a reference to a disk block
+    * @param id the ID of the record within the block
+    * @param offset the byte offset within the block
+    * @return the string stored at that offset
+    * @see #getRecordInt(Block, int, int)
+    */
+   public String getRecordString(Block blk, int id, int offset) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      if (versionMgr.readsSnapshot(blk))
+         return versionMgr.getString(buff, offset);
+      concurMgr.sLock(blk, id);
+      return buff.getString(offset);
+   }
+   
+   /**
+    * Releases the SLock on the record having the specified ID
+    * in the specified block, which the transaction obtained by
+    * reading the record only to find that its slot is empty.
+    * The transaction keeps its locks on the block,
+    * so the slot cannot be filled until it completes.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    */
+   public void releaseRecord(Block blk, int id) {
+      concurMgr.sUnlock(blk, id);
+   }
+   
+   /**
+    * Stores an integer at the specified offset
+    * of the record having the specified ID in the specified block.
+    * The method is like {@link #setInt(Block, int, int)}, except that
+    * it obtains an XLock on the record instead of the whole block.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setRecordInt(Block blk, int id, int offset, int val) {
+      checkWritable(blk.fileName());
+      concurMgr.xLock(blk, id);
+      writeInt(blk, offset, val);
+   }
+   
+   /**
+    * Stores a string at the specified offset
+    * of the record having the specified ID in the specified block.
+    * The method obtains an XLock on the record instead of the whole block.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    * @see #setRecordInt(Block, int, int, int)
+    */
+   public void setRecordString(Block blk, int id, int offset, String val) {
+      checkWritable(blk.fileName());
+      concurMgr.xLock(blk, id);
+      writeString(blk, offset, val);
+   }
+   
+   /**
+    * Obtains an SLock on the whole specified file.
+    * A transaction that is going to read every block of a file,
+    * such as a scan of an entire table, can call this method
+    * so that it does not lock each of the blocks and records.
+    * A transaction that reads a snapshot obtains no lock.
+    * @param filename the name of the file
+    */
+   public void sLockFile(String filename) {
+      if (!versionMgr.readsSnapshot(new Block(filename, END_OF_FILE)))
+         concurMgr.sLock(filename);
+   }
+   
+   /**
+    * Obtains an XLock on the whole specified file,
+    * which allows the transaction to read and modify
+    * every block of the file, and to append to it.
+    * @param filename the name of the file
+    */
+   public void xLockFile(String filename) {
+      checkWritable(filename);
+      concurMgr.xLock(filename);
    }
    
    /**
@@ -180,15 +387,30 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * The file manager keeps the sizes of files in memory,
+    * so the call does not read the disk,
+    * and the lock is obtained only on the first call for each file.
+    * A transaction that reads a snapshot obtains no lock;
+    * the blocks appended since its snapshot began
+    * hold no records that it can see.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
    public int size(String filename) {
       Block dummyblk = new Block(filename, END_OF_FILE);
-      concurMgr.sLock(dummyblk);
+      if (!versionMgr.readsSnapshot(dummyblk))
+         concurMgr.sLock(dummyblk);
       return SimpleDB.fileMgr().size(filename);
    }
    
+   /**
+    * Returns the number of bytes in a block of the database.
+    * @return the block size
+    */
+   public int blockSize() {
+      return SimpleDB.fileMgr().blockSize();
+   }
+   
    /**
     * Appends a new block to the end of the specified file
     * and returns a reference to it.
@@ -199,13 +421,66 @@ public class Transaction {
     * @return a reference to the newly-created disk block
     */
    public Block append(String filename, PageFormatter fmtr) {
+      return append(filename, fmtr, AccessPattern.RANDOM);
+   }
+   
+   /**
+    * Appends a new block to the end of the specified file
+    * and returns a reference to it, telling the buffer manager
+    * how the block is going to be accessed.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the new page
+    * @param pattern how the new block is going to be accessed
+    * @return a reference to the newly-created disk block
+    */
+   public Block append(String filename, PageFormatter fmtr, AccessPattern pattern) {
+      checkWritable(filename);
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk);
-      Block blk = myBuffers.pinNew(filename, fmtr);
+      Block blk = myBuffers.pinNew(filename, fmtr, pattern);
       unpin(blk);
       return blk;
    }
    
+   /**
+    * Writes an integer to a locked block,
+    * after saving its old value and logging the change.
+    * The change is logged and made while holding the buffer's lock,
+    * so that a checkpoint cannot miss the page.
+    */
+   private void writeInt(Block blk, int offset, int val) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      versionMgr.saveInt(buff, offset);
+      synchronized (buff) {
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
+   }
+   
+   /**
+    * Writes a string to a locked block,
+    * after saving its old value and logging the change.
+    * The change is logged and made while holding the buffer's lock,
+    * so that a checkpoint cannot miss the page.
+    */
+   private void writeString(Block blk, int offset, String val) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      versionMgr.saveString(buff, offset);
+      synchronized (buff) {
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+   }
+   
+   /**
+    * Throws an exception if the transaction is read-only,
+    * unless the file belongs to a temporary table.
+    */
+   private void checkWritable(String filename) {
+      if (readOnly && !filename.startsWith("temp"))
+         throw new ReadOnlyException(txnum);
+   }
+   
    private static synchronized int nextTxNumber() {
       nextTxNum++;
       System.out.println("new transaction: " + nextTxNum);
@@ -0,0 +1,89 @@
+package simpledb.tx.concurrency;
+
+import java.util.*;
+
+/**
+ * The saved versions of the locations of a block.
+ * Each location that has versions has a chain of them,
+ * from the newest to the oldest.
+ * A block whose last version is discarded is marked as removed,
+ * and a writer that finds it so must save its version
+ * in a new object.
+ */
+class BlockVersions {
+   private Map<Integer,Version> newest = new HashMap<Integer,Version>();
+   private boolean removed = false;
+
+   /**
+    * Adds the version as the newest of its location.
+    * @param v the version
+    * @return false if the block has been removed
+    */
+   synchronized boolean add(Version v) {
+      if (removed)
+         return false;
+      v.older = newest.put(v.offset, v);
+      return true;
+   }
+
+   /**
+    * Returns the integer at the specified location
+    * as of the specified snapshot.
+    * Each version written after the snapshot, or not yet committed,
+    * replaces the current value by the value it saved.
+    * @param offset the location
+    * @param current the current value of the location
+    * @param snapshot the commit time of the snapshot
+    * @return the value seen by the snapshot
+    */
+   synchronized int intAt(int offset, int current, long snapshot) {
+      int val = current;
+      for (Version v = newest.get(offset); v != null && v.commitTime > snapshot; v = v.older)
+         val = v.ival;
+      return val;
+   }
+
+   /**
+    * Returns the string at the specified location
+    * as of the specified snapshot.
+    * @param offset the location
+    * @param current the current value of the location
+    * @param snapshot the commit time of the snapshot
+    * @return the value seen by the snapshot
+    * @see #intAt(int, int, long)
+    */
+   synchronized String stringAt(int offset, String current, long snapshot) {
+      String val = current;
+      for (Version v = newest.get(offset); v != null && v.commitTime > snapshot; v = v.older)
+         val = v.sval;
+      return val;
+   }
+
+   /**
+    * Discards a version that no active snapshot can see before,
+    * together with the older versions of its location,
+    * which no snapshot can see before either.
+    * @param v the version
+    * @return true if the block has no more versions,
+    * and so has been removed
+    */
+   synchronized boolean discard(Version v) {
+      Version prev = null;
+      for (Version cur = newest.get(v.offset); cur != null; prev = cur, cur = cur.older) {
+         if (cur == v) {
+            if (prev == null)
+               newest.remove(v.offset);
+            else
+               prev.older = null;
+            break;
+         }
+      }
+      return checkRemoved();
+   }
+
+   private boolean checkRemoved() {
+      if (newest.isEmpty())
+         removed = true;
+      return removed;
+   }
+}
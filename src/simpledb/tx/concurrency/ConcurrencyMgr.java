@@ -1,65 +1,294 @@
 package simpledb.tx.concurrency;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.Block;
 import java.util.*;
 
 /**
  * The concurrency manager for the transaction.
- * Each transaction has its own concurrency manager. 
- * The concurrency manager keeps track of which locks the 
+ * Each transaction has its own concurrency manager.
+ * The concurrency manager keeps track of which locks the
  * transaction currently has, and interacts with the
- * global lock table as needed. 
+ * global lock table as needed.
+ * <P>
+ * Locks are hierarchical: a file contains blocks,
+ * and a block of a record file contains records.
+ * Before locking a block, the transaction locks its file
+ * in the corresponding intention mode (IS for an SLock,
+ * IX for an XLock); before locking a record, it locks
+ * both the file and the block in that mode.
+ * Two transactions can therefore lock different records
+ * of the same block, while a transaction that locks the
+ * whole block excludes the writers (or readers) of its records.
+ * <P>
+ * A lock on a file covers all of its blocks and records,
+ * so a transaction that reads a whole table can lock it once.
+ * When a transaction holds more than {@link SimpleDB#LOCK_ESCALATION}
+ * block and record locks on the same file, they are escalated:
+ * the transaction locks the file in S mode, and releases its
+ * shared block and record locks on the file.
+ * If the transaction also writes in the file, it then holds the file
+ * in SIX mode, and keeps its exclusive locks on the parts it writes.
+ * The file is locked in X mode only when the transaction
+ * has no shared locks on its parts to replace.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
-   
+
    /**
     * The global lock table.  This variable is static because all transactions
     * share the same table.
     */
    private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
-   
+   private int txnum;
+   private Map<Object,LockMode> locks  = new HashMap<Object,LockMode>();
+   private Map<String,Integer> partCounts = new HashMap<String,Integer>();
+
+   /**
+    * Creates the concurrency manager of the specified transaction.
+    * The lock table uses the id of the transaction to find
+    * deadlocks, and to choose their victims.
+    * @param txnum the ID of the transaction
+    */
+   public ConcurrencyMgr(int txnum) {
+      this.txnum = txnum;
+   }
+
+   /**
+    * Obtains an SLock on the whole file, if necessary.
+    * The lock covers every block and record of the file.
+    * @param filename the name of the file
+    */
+   public void sLock(String filename) {
+      if (!holds(filename, LockMode.S)) {
+         lock(filename, LockMode.S);
+         releaseParts(filename);
+      }
+   }
+
+   /**
+    * Obtains an XLock on the whole file, if necessary.
+    * The lock covers every block and record of the file.
+    * @param filename the name of the file
+    */
+   public void xLock(String filename) {
+      if (!holds(filename, LockMode.X)) {
+         lock(filename, LockMode.X);
+         releaseParts(filename);
+      }
+   }
+
    /**
-    * Obtains an SLock on the block, if necessary.
-    * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * Obtains an SLock on the block, if necessary,
+    * after an IS lock on its file.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk);
-         locks.put(blk, "S");
+      if (!holds(blk.fileName(), LockMode.S) && !holds(blk, LockMode.S)) {
+         lock(blk.fileName(), LockMode.IS);
+         lock(blk, LockMode.S);
+         escalateIfNeeded(blk.fileName());
       }
    }
-   
+
    /**
-    * Obtains an XLock on the block, if necessary.
-    * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * Obtains an XLock on the block, if necessary,
+    * after an IX lock on its file.
+    * An SLock that the transaction has on the block is upgraded.
     * @param blk a refrence to the disk block
     */
    public void xLock(Block blk) {
-      if (!hasXLock(blk)) {
-         sLock(blk);
-         locktbl.xLock(blk);
-         locks.put(blk, "X");
+      if (!holds(blk.fileName(), LockMode.X) && !holds(blk, LockMode.X)) {
+         lock(blk.fileName(), LockMode.IX);
+         lock(blk, LockMode.X);
+         escalateIfNeeded(blk.fileName());
+      }
+   }
+
+   /**
+    * Obtains an SLock on the record having the specified ID
+    * in the specified block, if necessary,
+    * after IS locks on the file and the block.
+    * No lock is needed if the transaction has locked the whole block or file.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    */
+   public void sLock(Block blk, int id) {
+      if (holds(blk.fileName(), LockMode.S) || holds(blk, LockMode.S))
+         return;
+      RecordKey rec = new RecordKey(blk, id);
+      if (!holds(rec, LockMode.S)) {
+         lock(blk.fileName(), LockMode.IS);
+         lock(blk, LockMode.IS);
+         lock(rec, LockMode.S);
+         escalateIfNeeded(blk.fileName());
+      }
+   }
+
+   /**
+    * Obtains an XLock on the record having the specified ID
+    * in the specified block, if necessary,
+    * after IX locks on the file and the block.
+    * No lock is needed if the transaction has an XLock on the block or file.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    */
+   public void xLock(Block blk, int id) {
+      if (holds(blk.fileName(), LockMode.X) || holds(blk, LockMode.X))
+         return;
+      RecordKey rec = new RecordKey(blk, id);
+      if (!holds(rec, LockMode.X)) {
+         lock(blk.fileName(), LockMode.IX);
+         lock(blk, LockMode.IX);
+         lock(rec, LockMode.X);
+         escalateIfNeeded(blk.fileName());
       }
    }
-   
+
+   /**
+    * Releases the SLock on the record having the specified ID
+    * in the specified block, which the transaction obtained
+    * only to find that the slot holds no record.
+    * The IS locks on the file and the block remain, so the slot
+    * cannot be filled by another transaction, which needs an XLock
+    * on the block, until this transaction completes.
+    * An XLock on the record is kept, since the transaction
+    * itself has emptied the slot.
+    * @param blk a reference to the disk block
+    * @param id the ID of the record within the block
+    */
+   public void sUnlock(Block blk, int id) {
+      RecordKey rec = new RecordKey(blk, id);
+      if (locks.get(rec) != LockMode.S)
+         return;
+      locktbl.unlock(rec, txnum);
+      locks.remove(rec);
+      String filename = blk.fileName();
+      int count = partCounts.get(filename) - 1;
+      if (count > 0)
+         partCounts.put(filename, count);
+      else
+         partCounts.remove(filename);
+   }
+
    /**
     * Releases all locks by asking the lock table to
     * unlock each one.
     */
    public void release() {
-      for (Block blk : locks.keySet())
-         locktbl.unlock(blk);
+      for (Object item : locks.keySet())
+         locktbl.unlock(item, txnum);
       locks.clear();
+      partCounts.clear();
+   }
+
+   /**
+    * Returns true if the transaction holds a lock on the item
+    * that allows what the specified mode allows.
+    */
+   private boolean holds(Object item, LockMode mode) {
+      LockMode held = locks.get(item);
+      return held != null && held.covers(mode);
+   }
+
+   private void lock(Object item, LockMode mode) {
+      if (holds(item, mode))
+         return;
+      if (locks.put(item, locktbl.lock(item, txnum, mode)) == null
+            && isPart(item)) {
+         String filename = blockOf(item).fileName();
+         Integer count = partCounts.get(filename);
+         partCounts.put(filename, (count == null) ? 1 : count+1);
+      }
+   }
+
+   /**
+    * Returns the block of a block or record item,
+    * or null if the item is a file.
+    */
+   private static Block blockOf(Object item) {
+      if (item instanceof Block)
+         return (Block) item;
+      else if (item instanceof RecordKey)
+         return ((RecordKey) item).block();
+      else
+         return null;
    }
-   
-   private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+
+   /**
+    * Returns true if the item is a block or record lock that counts
+    * towards the escalation of its file.
+    * The end-of-file marker block is not counted.
+    */
+   private static boolean isPart(Object item) {
+      Block blk = blockOf(item);
+      return blk != null && (item instanceof RecordKey || blk.number() >= 0);
+   }
+
+   /**
+    * Replaces the transaction's block and record locks on the file
+    * by a lock on the whole file, if there are too many of them.
+    * Each record lock counts like a block lock, so that a scan
+    * that locks every record of the file is escalated as soon
+    * as one that locks every block.
+    * If some of the locks are shared, the file is locked in S mode,
+    * which replaces them; a file already locked in IX mode
+    * is then held in SIX mode, and the exclusive locks remain.
+    * If all of the locks are exclusive, or the file is already held
+    * in S or SIX mode, so that the remaining locks are exclusive,
+    * the file is locked in X mode.
+    */
+   private void escalateIfNeeded(String filename) {
+      Integer count = partCounts.get(filename);
+      if (SimpleDB.LOCK_ESCALATION <= 0 || count == null
+            || count <= SimpleDB.LOCK_ESCALATION)
+         return;
+      if (!holds(filename, LockMode.S) && hasSharedParts(filename))
+         sLock(filename);
+      else
+         xLock(filename);
+   }
+
+   /**
+    * Returns true if the transaction holds a lock on a block
+    * or record of the file that an S lock on the file covers.
+    */
+   private boolean hasSharedParts(String filename) {
+      for (Map.Entry<Object,LockMode> e : locks.entrySet()) {
+         Block blk = blockOf(e.getKey());
+         if (blk != null && blk.fileName().equals(filename)
+               && LockMode.S.covers(e.getValue()))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Releases the transaction's locks on the blocks and records
+    * of the file that its lock on the file now covers.
+    * Under an S lock on the file, the parts that the
+    * transaction intends to write remain locked.
+    */
+   private void releaseParts(String filename) {
+      LockMode filemode = (locks.get(filename) == LockMode.X) ? LockMode.X : LockMode.S;
+      int count = 0;
+      Iterator<Map.Entry<Object,LockMode>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Map.Entry<Object,LockMode> e = iter.next();
+         Object item = e.getKey();
+         Block blk = blockOf(item);
+         if (blk == null || !blk.fileName().equals(filename))
+            continue;
+         if (filemode.covers(e.getValue())) {
+            locktbl.unlock(item, txnum);
+            iter.remove();
+         }
+         else if (isPart(item))
+            count++;
+      }
+      if (count > 0)
+         partCounts.put(filename, count);
+      else
+         partCounts.remove(filename);
    }
 }
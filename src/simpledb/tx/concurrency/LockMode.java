@@ -0,0 +1,73 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The modes in which a transaction can lock a file, a block,
+ * or a record.
+ * Before a transaction locks a block or a record in S or X mode,
+ * it locks the file (and, for a record, the block) in the
+ * corresponding intention mode, IS or IX.
+ * The SIX mode is held by a transaction that has both
+ * an S lock and an IX lock on the same item.
+ */
+enum LockMode {
+   /** An intention to lock parts of the item in S mode. */
+   IS,
+   /** An intention to lock parts of the item in X mode. */
+   IX,
+   /** A shared lock, which is obtained before reading. */
+   S,
+   /** A shared lock, with an intention to lock parts in X mode. */
+   SIX,
+   /** An exclusive lock, which is obtained before writing. */
+   X;
+
+   private static final boolean[][] COMPATIBLE = {
+      //           IS     IX     S      SIX    X
+      /* IS  */ { true,  true,  true,  true,  false },
+      /* IX  */ { true,  true,  false, false, false },
+      /* S   */ { true,  false, true,  false, false },
+      /* SIX */ { true,  false, false, false, false },
+      /* X   */ { false, false, false, false, false }
+   };
+
+   private static final LockMode[][] COMBINED = {
+      //           IS   IX   S    SIX  X
+      /* IS  */ { IS,  IX,  S,   SIX, X },
+      /* IX  */ { IX,  IX,  SIX, SIX, X },
+      /* S   */ { S,   SIX, S,   SIX, X },
+      /* SIX */ { SIX, SIX, SIX, SIX, X },
+      /* X   */ { X,   X,   X,   X,   X }
+   };
+
+   /**
+    * Returns true if one transaction can hold a lock of this mode
+    * while another holds a lock of the specified mode.
+    * @param other the mode of the other transaction's lock
+    * @return true if the two modes are compatible
+    */
+   boolean compatibleWith(LockMode other) {
+      return COMPATIBLE[ordinal()][other.ordinal()];
+   }
+
+   /**
+    * Returns true if a lock of this mode allows
+    * everything that a lock of the specified mode allows.
+    * @param other the other mode
+    * @return true if this mode is at least as strong
+    */
+   boolean covers(LockMode other) {
+      return combine(other) == this;
+   }
+
+   /**
+    * Returns the weakest mode that allows everything
+    * that both this mode and the specified mode allow.
+    * It is the mode of a transaction that holds
+    * a lock of this mode and requests the other.
+    * @param other the other mode
+    * @return the combined mode
+    */
+   LockMode combine(LockMode other) {
+      return COMBINED[ordinal()][other.ordinal()];
+   }
+}
@@ -1,103 +1,296 @@
 package simpledb.tx.concurrency;
 
-import simpledb.file.Block;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
+ * The lock table, which provides methods to lock and unlock items.
+ * An item is a file, a block, or a record,
+ * as described in {@link ConcurrencyMgr}; the table knows
+ * nothing of the hierarchy, and treats them alike.
+ * Each locked item has an entry that holds the transactions
+ * that have been granted a lock on it and their modes,
+ * and a FIFO queue of the requests that are waiting.
+ * A request is granted immediately if it is compatible with the
+ * granted locks and no earlier request is waiting;
+ * otherwise the transaction waits on its request.
+ * When a lock is released, the requests at the front of the queue
+ * are granted as far as they are compatible, and only those
+ * transactions are woken.
+ * A transaction that requests a stronger mode on an item it
+ * already holds, such as an SLock upgraded to an XLock,
+ * is granted the combination of the two modes,
+ * and goes to the front of the queue, since it already holds the item.
+ * <P>
+ * The entries are divided among a fixed number of stripes
+ * by the hash code of their item.
+ * Each stripe has its own lock, so that locking and unlocking
+ * items of different stripes never contend.
+ * A transaction waits without holding the lock of its stripe.
+ * <P>
+ * A transaction waits for the transactions that hold conflicting
+ * locks on the item, and for those with conflicting requests
+ * ahead of it in the queue.
+ * These edges are kept in a {@link WaitsForGraph}.
+ * Whenever a transaction has to wait, the graph is searched
+ * for a cycle leading back to it.
+ * A cycle is a deadlock, and the youngest transaction in it
+ * (the one with the largest id) is chosen as the victim:
+ * its request is withdrawn, and it throws a
+ * {@link LockAbortException} so that it can roll back.
  * @author Edward Sciore
  */
 class LockTable {
-   private static final long MAX_TIME = 10000; // 10 seconds
-   
-   private Map<Block,Integer> locks = new HashMap<Block,Integer>();
-   
+   private static final int STRIPES = 64;
+
+   private Stripe[] stripes = new Stripe[STRIPES];
+   private WaitsForGraph graph = new WaitsForGraph();
+   private Map<Integer,Request> waiting = new ConcurrentHashMap<Integer,Request>();
+
    /**
-    * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Creates an empty lock table.
     */
-   public synchronized void sLock(Block blk) {
+   LockTable() {
+      for (int i=0; i<STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+
+   /**
+    * Grants a lock of the specified mode on the specified item
+    * to the specified transaction.
+    * If the transaction already holds a lock on the item,
+    * it is granted the combination of the two modes.
+    * If the request conflicts with the locks of other transactions,
+    * then the calling thread waits until it is granted.
+    * @param item the file, block, or record
+    * @param txnum the id of the transaction
+    * @param mode the requested mode
+    * @return the mode now held by the transaction
+    * @throws LockAbortException if the transaction is chosen
+    * as the victim of a deadlock, or is interrupted while waiting
+    */
+   LockMode lock(Object item, int txnum, LockMode mode) {
+      Request req;
+      Stripe stripe = stripeFor(item);
+      stripe.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasXlock(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasXlock(blk))
-            throw new LockAbortException();
-         int val = getLockVal(blk);  // will not be negative
-         locks.put(blk, val+1);
+         LockEntry entry = stripe.entries.get(item);
+         if (entry == null) {
+            entry = new LockEntry();
+            stripe.entries.put(item, entry);
+         }
+         LockMode held = entry.holders.get(txnum);
+         if (held != null) {
+            if (held.covers(mode))
+               return held;
+            mode = held.combine(mode);
+         }
+         if ((held != null || entry.queue.isEmpty()) && entry.compatible(txnum, mode)) {
+            entry.holders.put(txnum, mode);
+            return mode;
+         }
+         req = new Request(txnum, mode, item);
+         if (held != null)
+            entry.queue.addFirst(req);
+         else
+            entry.queue.addLast(req);
+         waiting.put(txnum, req);
+         setEdges(entry);
+      }
+      finally {
+         stripe.unlock();
+      }
+      resolveDeadlocks(req);
+      try {
+         req.await();
       }
       catch(InterruptedException e) {
+         abort(req);
+         // a request granted before the interrupt was seen
+         // cannot be aborted, and so the interrupt is kept
+         if (!req.isAborted())
+            Thread.currentThread().interrupt();
+      }
+      if (req.isAborted())
          throw new LockAbortException();
+      return mode;
+   }
+
+   /**
+    * Releases the lock of the specified transaction
+    * on the specified item.
+    * The waiting requests that can then be granted are granted,
+    * and their transactions are woken.
+    * @param item the file, block, or record
+    * @param txnum the id of the transaction
+    */
+   void unlock(Object item, int txnum) {
+      Stripe stripe = stripeFor(item);
+      stripe.lock();
+      try {
+         LockEntry entry = stripe.entries.get(item);
+         if (entry == null)
+            return;
+         entry.holders.remove(txnum);
+         entryChanged(stripe, item, entry);
+      }
+      finally {
+         stripe.unlock();
       }
    }
-   
+
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Aborts deadlock victims until the specified request
+    * is no longer part of a cycle of waiting transactions.
     */
-   synchronized void xLock(Block blk) {
+   private void resolveDeadlocks(Request req) {
+      int victim = graph.findVictim(req.txnum);
+      while (victim >= 0) {
+         Request r = waiting.get(victim);
+         if (r != null)
+            abort(r);
+         if (req.isAborted())
+            return;
+         victim = graph.findVictim(req.txnum);
+      }
+   }
+
+   /**
+    * Withdraws the specified waiting request and wakes its transaction,
+    * which will throw an exception.
+    * The requests behind it in the queue may then be grantable.
+    */
+   private void abort(Request req) {
+      Stripe stripe = stripeFor(req.item);
+      stripe.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasOtherSLocks(blk))
-            throw new LockAbortException();
-         locks.put(blk, -1);
+         LockEntry entry = stripe.entries.get(req.item);
+         if (entry == null || !entry.queue.remove(req))
+            return;  // the request has already been granted or aborted
+         waiting.remove(req.txnum);
+         graph.remove(req.txnum);
+         req.abort();
+         entryChanged(stripe, req.item, entry);
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         stripe.unlock();
+      }
+   }
+
+   /**
+    * Grants the requests at the front of the queue of the entry,
+    * for as long as they are compatible with the granted locks,
+    * and then sets the edges of the requests that still wait.
+    * An entry that has no locks and no requests is removed.
+    * The method is called with the lock of the stripe held.
+    */
+   private void entryChanged(Stripe stripe, Object item, LockEntry entry) {
+      while (!entry.queue.isEmpty()) {
+         Request req = entry.queue.getFirst();
+         if (!entry.compatible(req.txnum, req.mode))
+            break;
+         entry.queue.removeFirst();
+         entry.holders.put(req.txnum, req.mode);
+         waiting.remove(req.txnum);
+         graph.remove(req.txnum);
+         req.grant();
       }
+      if (entry.holders.isEmpty() && entry.queue.isEmpty())
+         stripe.entries.remove(item);
+      else
+         setEdges(entry);
    }
-   
+
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
+    * Sets the edges of each waiting request of the entry
+    * to the transactions that it waits for:
+    * those holding conflicting locks,
+    * and those with conflicting requests ahead of it.
     */
-   synchronized void unlock(Block blk) {
-      int val = getLockVal(blk);
-      if (val > 1)
-         locks.put(blk, val-1);
-      else {
-         locks.remove(blk);
-         notifyAll();
+   private void setEdges(LockEntry entry) {
+      int pos = 0;
+      for (Request req : entry.queue) {
+         Collection<Integer> blockers = new ArrayList<Integer>();
+         for (Map.Entry<Integer,LockMode> h : entry.holders.entrySet())
+            if (h.getKey() != req.txnum && !req.mode.compatibleWith(h.getValue()))
+               blockers.add(h.getKey());
+         for (Request r : entry.queue.subList(0, pos))
+            if (!req.mode.compatibleWith(r.mode))
+               blockers.add(r.txnum);
+         graph.setEdges(req.txnum, blockers);
+         pos++;
       }
    }
-   
-   private boolean hasXlock(Block blk) {
-      return getLockVal(blk) < 0;
+
+   private Stripe stripeFor(Object item) {
+      int h = item.hashCode();
+      h ^= (h >>> 16);
+      return stripes[(h & 0x7fffffff) % STRIPES];
    }
-   
-   private boolean hasOtherSLocks(Block blk) {
-      return getLockVal(blk) > 1;
+
+   /**
+    * A stripe of the lock table: a lock,
+    * and the entries of the items that hash to the stripe.
+    */
+   @SuppressWarnings("serial")
+   private static class Stripe extends ReentrantLock {
+      Map<Object,LockEntry> entries = new HashMap<Object,LockEntry>();
    }
-   
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+
+   /**
+    * The lock state of an item.
+    */
+   private static class LockEntry {
+      Map<Integer,LockMode> holders = new HashMap<Integer,LockMode>();
+      LinkedList<Request> queue = new LinkedList<Request>();
+
+      /**
+       * Returns true if a lock of the specified mode is compatible
+       * with the locks granted to the other transactions.
+       */
+      boolean compatible(int txnum, LockMode mode) {
+         for (Map.Entry<Integer,LockMode> h : holders.entrySet())
+            if (h.getKey() != txnum && !mode.compatibleWith(h.getValue()))
+               return false;
+         return true;
+      }
    }
-   
-   private int getLockVal(Block blk) {
-      Integer ival = locks.get(blk);
-      return (ival == null) ? 0 : ival.intValue();
+
+   /**
+    * A transaction's request for a lock.
+    * The transaction waits on the request's monitor
+    * until the request is granted or aborted.
+    */
+   private static class Request {
+      int txnum;
+      LockMode mode;
+      Object item;
+      private boolean granted = false, aborted = false;
+
+      Request(int txnum, LockMode mode, Object item) {
+         this.txnum = txnum;
+         this.mode = mode;
+         this.item = item;
+      }
+
+      synchronized void await() throws InterruptedException {
+         while (!granted && !aborted)
+            wait();
+      }
+
+      synchronized void grant() {
+         granted = true;
+         notify();
+      }
+
+      synchronized void abort() {
+         aborted = true;
+         notify();
+      }
+
+      synchronized boolean isAborted() {
+         return aborted;
+      }
    }
 }
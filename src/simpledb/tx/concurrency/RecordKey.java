@@ -0,0 +1,42 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.Block;
+
+/**
+ * The key under which a record is locked:
+ * its block, and its ID within the block.
+ * (A file is locked under its name, and a block under its
+ * {@link Block} reference.)
+ */
+class RecordKey {
+   private Block blk;
+   private int id;
+
+   RecordKey(Block blk, int id) {
+      this.blk = blk;
+      this.id = id;
+   }
+
+   /**
+    * Returns the block holding the record.
+    * @return the record's block
+    */
+   Block block() {
+      return blk;
+   }
+
+   public boolean equals(Object obj) {
+      if (!(obj instanceof RecordKey))
+         return false;
+      RecordKey k = (RecordKey) obj;
+      return id == k.id && blk.equals(k.blk);
+   }
+
+   public int hashCode() {
+      return 31 * blk.hashCode() + id;
+   }
+
+   public String toString() {
+      return blk + "[record " + id + "]";
+   }
+}
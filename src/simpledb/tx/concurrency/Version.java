@@ -0,0 +1,34 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.Block;
+
+/**
+ * The value of a location of a block as it was before
+ * a transaction modified it.
+ * The version is stamped with the commit time of that transaction
+ * when it commits; until then, the modification is uncommitted,
+ * and the saved value is the one that every snapshot sees.
+ * If the transaction rolls back, the version is stamped
+ * in the same way once the modification is undone,
+ * so that the snapshots that began earlier still see the saved value.
+ * The versions of a location are chained from the newest to the oldest.
+ */
+class Version {
+   static final long UNCOMMITTED = Long.MAX_VALUE;
+
+   Block blk;
+   BlockVersions chain;
+   int offset;
+   int ival;
+   String sval;  // null for an integer value
+   volatile long commitTime = UNCOMMITTED;
+   Version older;  // guarded by the chain
+
+   Version(Block blk, BlockVersions chain, int offset, int ival, String sval) {
+      this.blk = blk;
+      this.chain = chain;
+      this.offset = offset;
+      this.ival = ival;
+      this.sval = sval;
+   }
+}
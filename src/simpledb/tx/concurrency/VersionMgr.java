@@ -0,0 +1,142 @@
+package simpledb.tx.concurrency;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.Block;
+import simpledb.buffer.Buffer;
+import java.util.*;
+
+/**
+ * The version manager for the transaction.
+ * Each transaction has its own version manager.
+ * When snapshot reads are enabled (see {@link SimpleDB#SNAPSHOT_READS}),
+ * a writing transaction saves the previous value of each location
+ * it modifies, and a read-only transaction reads the database
+ * as it was when the transaction began, without obtaining locks.
+ * The values are reconstructed from the current contents of the
+ * buffer and the saved versions, which are kept in the global
+ * version table.
+ * Blocks of temporary files are private to their transaction,
+ * and so have no versions.
+ */
+public class VersionMgr {
+
+   /**
+    * The global version table.  This variable is static because all transactions
+    * share the same table.
+    */
+   private static VersionTable versiontbl = new VersionTable();
+   private long snapshot = -1;  // negative means no snapshot
+   private List<Version> versions = new ArrayList<Version>();
+
+   /**
+    * Creates the version manager of a transaction.
+    * A read-only transaction begins its snapshot.
+    * @param readOnly true if the transaction is read-only
+    */
+   public VersionMgr(boolean readOnly) {
+      if (readOnly && SimpleDB.SNAPSHOT_READS)
+         snapshot = versiontbl.beginSnapshot();
+   }
+
+   /**
+    * Returns true if the transaction reads the specified block
+    * from its snapshot, instead of locking it.
+    * @param blk a reference to the disk block
+    * @return true if the block is read from the snapshot
+    */
+   public boolean readsSnapshot(Block blk) {
+      return snapshot >= 0 && !isTempBlock(blk);
+   }
+
+   /**
+    * Returns the integer at the specified offset of the buffer,
+    * as of the transaction's snapshot.
+    * @param buff the buffer holding the block
+    * @param offset the byte offset within the block
+    * @return the integer seen by the snapshot
+    */
+   public int getInt(Buffer buff, int offset) {
+      int current;
+      synchronized(buff) {
+         current = buff.getInt(offset);
+      }
+      return versiontbl.intAt(buff.block(), offset, current, snapshot);
+   }
+
+   /**
+    * Returns the string at the specified offset of the buffer,
+    * as of the transaction's snapshot.
+    * @param buff the buffer holding the block
+    * @param offset the byte offset within the block
+    * @return the string seen by the snapshot
+    */
+   public String getString(Buffer buff, int offset) {
+      String current;
+      synchronized(buff) {
+         current = buff.getString(offset);
+      }
+      return versiontbl.stringAt(buff.block(), offset, current, snapshot);
+   }
+
+   /**
+    * Saves the integer at the specified offset of the buffer,
+    * which the transaction is about to modify.
+    * @param buff the buffer holding the block
+    * @param offset the byte offset within the block
+    */
+   public void saveInt(Buffer buff, int offset) {
+      Block blk = buff.block();
+      if (SimpleDB.SNAPSHOT_READS && !isTempBlock(blk))
+         versions.add(versiontbl.save(blk, offset, buff.getInt(offset), null));
+   }
+
+   /**
+    * Saves the string at the specified offset of the buffer,
+    * which the transaction is about to modify.
+    * @param buff the buffer holding the block
+    * @param offset the byte offset within the block
+    */
+   public void saveString(Buffer buff, int offset) {
+      Block blk = buff.block();
+      if (SimpleDB.SNAPSHOT_READS && !isTempBlock(blk))
+         versions.add(versiontbl.save(blk, offset, 0, buff.getString(offset)));
+   }
+
+   /**
+    * Makes the transaction's modifications visible to later snapshots,
+    * and ends its snapshot.
+    * The method is called after the commit record is on disk,
+    * and before the transaction's locks are released.
+    */
+   public void commit() {
+      versiontbl.commit(versions);
+      versions.clear();
+      endSnapshot();
+   }
+
+   /**
+    * Retires the transaction's saved versions, and ends its snapshot.
+    * The versions are discarded once the snapshots that may have
+    * read the undone modifications have ended.
+    * The method is called after the modifications have been undone.
+    */
+   public void rollback() {
+      versiontbl.rollback(versions);
+      versions.clear();
+      endSnapshot();
+   }
+
+   private void endSnapshot() {
+      if (snapshot >= 0) {
+         versiontbl.endSnapshot(snapshot);
+         snapshot = -1;
+      }
+   }
+
+   /**
+    * Determines whether a block comes from a temporary file or not.
+    */
+   private boolean isTempBlock(Block blk) {
+      return blk.fileName().startsWith("temp");
+   }
+}
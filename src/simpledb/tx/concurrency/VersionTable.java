@@ -0,0 +1,168 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.Block;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The version table, which keeps the versions of modified
+ * locations for the snapshots of read-only transactions.
+ * Commit times are given by a clock that advances at each
+ * commit of a writing transaction.
+ * A snapshot sees the modifications of the transactions
+ * that committed at or before its commit time.
+ * <P>
+ * The versions of committed transactions are kept in commit order
+ * until the oldest active snapshot no longer needs them.
+ * A snapshot with commit time t needs the versions
+ * of the transactions committed after t.
+ * <P>
+ * The versions of a transaction that rolls back are not unlinked,
+ * since a snapshot may have read a value that the rollback then undid,
+ * and needs the version to replace it.
+ * The value saved by such a version is the one the undo restored,
+ * and so it is retired like a committed version:
+ * it is stamped with the next commit time, is applied only by the
+ * snapshots that began before the rollback, and is discarded
+ * once they have ended.
+ */
+class VersionTable {
+   private Map<Block,BlockVersions> blocks = new ConcurrentHashMap<Block,BlockVersions>();
+   private long clock = 0;
+   private TreeMap<Long,Integer> snapshots = new TreeMap<Long,Integer>();
+   private Queue<Version> retired = new ArrayDeque<Version>();  // committed or rolled back
+
+   /**
+    * Saves the value that a location had
+    * before an uncommitted modification.
+    * @param blk the block
+    * @param offset the location within the block
+    * @param ival the integer value, if sval is null
+    * @param sval the string value, or null
+    * @return the new version
+    */
+   Version save(Block blk, int offset, int ival, String sval) {
+      while (true) {
+         BlockVersions chain = blocks.get(blk);
+         if (chain == null) {
+            chain = new BlockVersions();
+            BlockVersions prev = blocks.putIfAbsent(blk, chain);
+            if (prev != null)
+               chain = prev;
+         }
+         Version v = new Version(blk, chain, offset, ival, sval);
+         if (chain.add(v))
+            return v;
+         blocks.remove(blk, chain);  // removed since it was found
+      }
+   }
+
+   /**
+    * Returns the integer at the specified location
+    * as of the specified snapshot.
+    * The current value must have been read before the versions are,
+    * and a writer saves a version before it modifies the location.
+    * @param blk the block
+    * @param offset the location within the block
+    * @param current the current value of the location
+    * @param snapshot the commit time of the snapshot
+    * @return the value seen by the snapshot
+    */
+   int intAt(Block blk, int offset, int current, long snapshot) {
+      BlockVersions chain = blocks.get(blk);
+      return (chain == null) ? current : chain.intAt(offset, current, snapshot);
+   }
+
+   /**
+    * Returns the string at the specified location
+    * as of the specified snapshot.
+    * @param blk the block
+    * @param offset the location within the block
+    * @param current the current value of the location
+    * @param snapshot the commit time of the snapshot
+    * @return the value seen by the snapshot
+    * @see #intAt(Block, int, int, long)
+    */
+   String stringAt(Block blk, int offset, String current, long snapshot) {
+      BlockVersions chain = blocks.get(blk);
+      return (chain == null) ? current : chain.stringAt(offset, current, snapshot);
+   }
+
+   /**
+    * Begins a snapshot of the committed modifications.
+    * @return the commit time of the snapshot
+    */
+   synchronized long beginSnapshot() {
+      Integer count = snapshots.get(clock);
+      snapshots.put(clock, (count == null) ? 1 : count+1);
+      return clock;
+   }
+
+   /**
+    * Ends the specified snapshot, and discards the versions
+    * that the remaining snapshots do not need.
+    * @param snapshot the commit time of the snapshot
+    */
+   void endSnapshot(long snapshot) {
+      synchronized(this) {
+         int count = snapshots.get(snapshot);
+         if (count > 1)
+            snapshots.put(snapshot, count-1);
+         else
+            snapshots.remove(snapshot);
+      }
+      collect();
+   }
+
+   /**
+    * Stamps the versions of a committing transaction with
+    * the next commit time, which makes its modifications
+    * visible to the snapshots that begin afterwards.
+    * The versions that no snapshot needs are then discarded.
+    * @param versions the versions saved by the transaction
+    */
+   void commit(List<Version> versions) {
+      retire(versions);
+   }
+
+   /**
+    * Retires the versions of a transaction that has rolled back.
+    * The transaction's modifications have already been undone,
+    * but a snapshot that began earlier may have read one of them,
+    * and so the versions are stamped with the next commit time,
+    * as for a commit, and are discarded once no snapshot needs them.
+    * @param versions the versions saved by the transaction
+    */
+   void rollback(List<Version> versions) {
+      retire(versions);
+   }
+
+   /**
+    * Stamps the versions with the next commit time,
+    * queues them for discarding, and discards the
+    * versions that no snapshot needs.
+    */
+   private void retire(List<Version> versions) {
+      if (versions.isEmpty())
+         return;
+      synchronized(this) {
+         clock++;
+         for (Version v : versions)
+            v.commitTime = clock;
+         retired.addAll(versions);
+      }
+      collect();
+   }
+
+   private void collect() {
+      List<Version> unneeded = new ArrayList<Version>();
+      synchronized(this) {
+         long oldest = snapshots.isEmpty() ? clock : snapshots.firstKey();
+         while (!retired.isEmpty() && retired.peek().commitTime <= oldest)
+            unneeded.add(retired.poll());
+      }
+      for (Version v : unneeded)
+         if (v.chain.discard(v))
+            blocks.remove(v.blk, v.chain);
+   }
+}
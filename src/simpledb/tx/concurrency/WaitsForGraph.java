@@ -0,0 +1,72 @@
+package simpledb.tx.concurrency;
+
+import java.util.*;
+
+/**
+ * The waits-for graph of the lock table.
+ * The graph has an edge from each waiting transaction to each
+ * transaction that it waits for.
+ * The edges of a transaction are set by the stripe of the lock table
+ * holding the block that the transaction waits on, and are set again
+ * whenever the lock state of that block changes.
+ * The graph has its own monitor, which is always obtained after
+ * the lock of a stripe and never before it,
+ * so that a deadlock can be searched for across the stripes.
+ */
+class WaitsForGraph {
+   private Map<Integer,Collection<Integer>> edges = new HashMap<Integer,Collection<Integer>>();
+
+   /**
+    * Sets the transactions that the specified transaction waits for.
+    * @param txnum the id of the waiting transaction
+    * @param blockers the ids of the transactions it waits for
+    */
+   synchronized void setEdges(int txnum, Collection<Integer> blockers) {
+      edges.put(txnum, blockers);
+   }
+
+   /**
+    * Removes the edges of the specified transaction,
+    * which no longer waits.
+    * @param txnum the id of the transaction
+    */
+   synchronized void remove(int txnum) {
+      edges.remove(txnum);
+   }
+
+   /**
+    * Searches for a cycle of waiting transactions that
+    * includes the specified transaction, and returns the
+    * youngest transaction in it (the one with the largest id).
+    * @param txnum the id of the waiting transaction
+    * @return the id of the victim, or -1 if there is no cycle
+    */
+   synchronized int findVictim(int txnum) {
+      LinkedList<Integer> path = new LinkedList<Integer>();
+      if (findPath(txnum, txnum, new HashSet<Integer>(), path))
+         return Collections.max(path);
+      else
+         return -1;
+   }
+
+   /**
+    * Searches the edges for a path from the specified transaction
+    * back to the target transaction.
+    * The transactions along the path are added to the list.
+    */
+   private boolean findPath(int txnum, int target, Set<Integer> visited,
+                            LinkedList<Integer> path) {
+      Collection<Integer> blockers = edges.get(txnum);
+      if (blockers == null)
+         return false;
+      path.addLast(txnum);
+      for (int next : blockers) {
+         if (next == target)
+            return true;
+         if (visited.add(next) && findPath(next, target, visited, path))
+            return true;
+      }
+      path.removeLast();
+      return false;
+   }
+}
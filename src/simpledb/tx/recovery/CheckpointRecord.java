@@ -1,6 +1,8 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 /**
  * The CHECKPOINT log record.
@@ -26,8 +28,9 @@ class CheckpointRecord implements LogRecord {
     * and nothing else.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {CHECKPOINT};
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(CHECKPOINT);
       return logMgr.append(rec);
    }
    
@@ -43,11 +46,21 @@ class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
    
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
    
    public String toString() {
       return "<CHECKPOINT>";
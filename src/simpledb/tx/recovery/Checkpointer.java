@@ -0,0 +1,42 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import java.util.logging.Level;
+
+/**
+ * A background thread that periodically takes a
+ * non-quiescent checkpoint, so that the work of recovery
+ * and the size of the log stay bounded
+ * without stopping the running transactions.
+ */
+class Checkpointer extends Thread {
+   private long interval;
+
+   /**
+    * Creates a checkpointer that checkpoints at the specified interval.
+    * @param interval the milliseconds between checkpoints
+    */
+   Checkpointer(long interval) {
+      super("checkpointer");
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            Thread.sleep(interval);
+            RecoveryMgr.checkpoint();
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(RuntimeException e) {
+            // the log is not truncated, and the next
+            // checkpoint will try again
+            SimpleDB.getLogger().log(Level.WARNING,
+                  "checkpointer could not take a checkpoint", e);
+         }
+      }
+   }
+}
@@ -0,0 +1,138 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+/**
+ * The COMPENSATION log record, which describes the undo
+ * of a SETINT or SETSTRING record.
+ * The record holds the restored value, so that the undo
+ * can be redone, and the LSN of the undone record,
+ * so that a rollback interrupted by a crash does not undo
+ * that record, or any later one, a second time.
+ * A compensation record is itself never undone.
+ */
+class CompensationRecord implements LogRecord {
+   private int txnum, offset, ival;
+   private String sval;  // null if the restored value is an integer
+   private long undoneLSN;
+   private Block blk;
+   
+   /**
+    * Creates a compensation record that restores an integer.
+    * @param txnum the ID of the transaction whose update was undone
+    * @param undoneLSN the LSN of the undone record
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param val the restored value
+    */
+   public CompensationRecord(int txnum, long undoneLSN, Block blk, int offset, int val) {
+      this.txnum = txnum;
+      this.undoneLSN = undoneLSN;
+      this.blk = blk;
+      this.offset = offset;
+      this.ival = val;
+   }
+   
+   /**
+    * Creates a compensation record that restores a string.
+    * @param txnum the ID of the transaction whose update was undone
+    * @param undoneLSN the LSN of the undone record
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param val the restored value
+    */
+   public CompensationRecord(int txnum, long undoneLSN, Block blk, int offset, String val) {
+      this.txnum = txnum;
+      this.undoneLSN = undoneLSN;
+      this.blk = blk;
+      this.offset = offset;
+      this.sval = val;
+   }
+   
+   /**
+    * Creates a log record for the specified transaction
+    * by reading five other values from the log.
+    * @param txnum the ID of the transaction, already read from the log
+    * @param rec the basic log record
+    */
+   public CompensationRecord(int txnum, BasicLogRecord rec) {
+      this.txnum = txnum;
+      undoneLSN = rec.nextLong();
+      String filename = rec.nextString();
+      int blknum = rec.nextInt();
+      blk = new Block(filename, blknum);
+      offset = rec.nextInt();
+      if (rec.nextInt() == SETSTRING)
+         sval = rec.nextString();
+      else
+         ival = rec.nextInt();
+   }
+   
+   /** 
+    * Writes a compensation record to the log.
+    * This log record contains the COMPENSATION operator,
+    * followed by the transaction id, the LSN of the undone record,
+    * the filename, number, and offset of the modified block,
+    * the type of the undone record, and the restored value.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(COMPENSATION).putInt(txnum).putLong(undoneLSN)
+         .putString(blk.fileName()).putInt(blk.number()).putInt(offset);
+      if (sval != null)
+         rec.putInt(SETSTRING).putString(sval);
+      else
+         rec.putInt(SETINT).putInt(ival);
+      return logMgr.append(rec);
+   }
+   
+   public int op() {
+      return COMPENSATION;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+   
+   public Block block() {
+      return blk;
+   }
+   
+   /**
+    * Returns the LSN of the record whose undo this record describes.
+    * @return the LSN of the undone record
+    */
+   public long undoneLSN() {
+      return undoneLSN;
+   }
+   
+   public String toString() {
+      Object val = (sval != null) ? sval : Integer.valueOf(ival);
+      return "<COMPENSATION " + txnum + " " + undoneLSN + " " + blk + " " + offset + " " + val + ">";
+   }
+   
+   /**
+    * Does nothing, because a compensation record
+    * is never undone.
+    */
+   public void undo(int txnum, long lsn) {}
+   
+   /** 
+    * Writes the restored value to the specified block again.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      if (sval != null)
+         buff.setString(offset, sval, txnum, lsn);
+      else
+         buff.setInt(offset, ival, txnum, lsn);
+      buffMgr.unpin(buff);
+   }
+}
@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
@@ -9,11 +10,12 @@ import simpledb.server.SimpleDB;
  */
 public interface LogRecord {
    /**
-    * The six different types of log record
+    * The eight different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
+      SETINT = 4, SETSTRING = 5,
+      NQCKPT = 6, COMPENSATION = 7;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +23,7 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
    
    /**
     * Returns the log record's type. 
@@ -37,10 +39,29 @@ public interface LogRecord {
    int txNumber();
    
    /**
-    * Undoes the operation encoded by this log record.
+    * Returns the block modified by the log record,
+    * or null if the record does not modify a block.
+    * @return the modified block, or null
+    */
+   Block block();
+   
+   /**
+    * Undoes the operation encoded by this log record,
+    * first writing a compensation log record that
+    * describes the undo.
     * The only log record types for which this method
     * does anything interesting are SETINT and SETSTRING.
     * @param txnum the id of the transaction that is performing the undo.
+    * @param lsn the LSN of this log record
+    */
+   void undo(int txnum, long lsn);
+   
+   /**
+    * Redoes the operation encoded by this log record.
+    * The only log record types for which this method
+    * does anything interesting are SETINT, SETSTRING and COMPENSATION.
+    * @param txnum the id of the transaction that is performing the redo.
+    * @param lsn the LSN of this log record
     */
-   void undo(int txnum);
+   void redo(int txnum, long lsn);
 }
\ No newline at end of file
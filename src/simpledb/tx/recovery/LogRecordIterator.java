@@ -2,54 +2,120 @@ package simpledb.tx.recovery;
 
 import static simpledb.tx.recovery.LogRecord.*;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import simpledb.log.BasicLogRecord;
 import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
- * Unlike the similar class 
- * {@link simpledb.log.LogIterator LogIterator},  
+ * from the log in reverse order, or forward from a given LSN.
+ * Unlike the similar class
+ * {@link simpledb.log.LogIterator LogIterator},
  * this class understands the meaning of the log records.
+ * <P>
+ * The iterator can be restricted to the records of a single
+ * transaction.  The type and transaction id of each record
+ * are read first, and the rest of a record belonging to
+ * another transaction is skipped without being decoded.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
-   
+   private static final int ALL_TXS = Integer.MIN_VALUE;
+
+   private Iterator<BasicLogRecord> iter;
+   private int txfilter;
+   private BasicLogRecord current = null;  // positioned after its type and txnum
+   private int op, txnum;
+   private long lsn;
+
+   /**
+    * Creates an iterator over all of the log records.
+    */
+   LogRecordIterator() {
+      this(ALL_TXS);
+   }
+
+   /**
+    * Creates an iterator over the log records
+    * of the specified transaction.
+    * @param txnum the ID of the transaction
+    */
+   LogRecordIterator(int txnum) {
+      this(SimpleDB.logMgr().iterator(), txnum);
+   }
+
+   private LogRecordIterator(Iterator<BasicLogRecord> iter, int txfilter) {
+      this.iter = iter;
+      this.txfilter = txfilter;
+   }
+
+   /**
+    * Returns an iterator over the log records having
+    * an LSN of at least the specified LSN,
+    * in the order they were appended.
+    * @param fromLSN the LSN of the earliest record to return
+    * @return the forward iterator
+    */
+   static LogRecordIterator forward(long fromLSN) {
+      return new LogRecordIterator(SimpleDB.logMgr().iterator(fromLSN), ALL_TXS);
+   }
+
    public boolean hasNext() {
-      return iter.hasNext();
+      while (current == null && iter.hasNext()) {
+         BasicLogRecord rec = iter.next();
+         op = rec.nextInt();
+         txnum = (op == CHECKPOINT || op == NQCKPT) ? -1 : rec.nextInt();
+         if (txfilter == ALL_TXS || txnum == txfilter)
+            current = rec;
+      }
+      return current != null;
    }
-   
+
    /**
-    * Constructs a log record from the values in the 
+    * Constructs a log record from the values in the
     * current basic log record.
-    * The method first reads an integer, which denotes
-    * the type of the log record.  Based on that type,
+    * Based on the type of the record, which has already been read,
     * the method calls the appropriate LogRecord constructor
     * to read the remaining values.
-    * @return the next log record, or null if no more records
+    * @return the next log record, or null if its type is unknown
     */
    public LogRecord next() {
-      BasicLogRecord rec = iter.next();
-      int op = rec.nextInt();
+      if (!hasNext())
+         throw new NoSuchElementException();
+      BasicLogRecord rec = current;
+      current = null;
+      lsn = rec.lsn();
       switch (op) {
          case CHECKPOINT:
             return new CheckpointRecord(rec);
+         case NQCKPT:
+            return new NQCheckpointRecord(rec);
          case START:
-            return new StartRecord(rec);
+            return new StartRecord(txnum);
          case COMMIT:
-            return new CommitRecord(rec);
+            return new CommitRecord(txnum);
          case ROLLBACK:
-            return new RollbackRecord(rec);
+            return new RollbackRecord(txnum);
          case SETINT:
-            return new SetIntRecord(rec);
+            return new SetIntRecord(txnum, rec);
          case SETSTRING:
-            return new SetStringRecord(rec);
+            return new SetStringRecord(txnum, rec);
+         case COMPENSATION:
+            return new CompensationRecord(txnum, rec);
          default:
             return null;
       }
-   } 
-   
+   }
+
+   /**
+    * Returns the LSN of the log record most recently
+    * returned by {@link #next()}.
+    * @return the LSN of the current log record
+    */
+   long lsn() {
+      return lsn;
+   }
+
    public void remove() {
       throw new UnsupportedOperationException();
    }
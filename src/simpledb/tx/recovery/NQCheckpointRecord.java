@@ -0,0 +1,164 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+import java.util.*;
+
+/**
+ * The NQCKPT log record of a non-quiescent checkpoint.
+ * A checkpoint records the end of the log when it began,
+ * the transactions that were active at that time,
+ * and the dirty page table of the buffer manager.
+ * A log record must fit in a block, and so a checkpoint is written
+ * as one or more NQCKPT records, which all hold the same begin LSN;
+ * the last of them is marked as such, so that recovery can tell
+ * a complete checkpoint from one interrupted by a crash.
+ * A record created for a checkpoint holds the whole checkpoint,
+ * and writes all of its parts;
+ * a record read from the log holds the entries of one part.
+ */
+class NQCheckpointRecord implements LogRecord {
+   private static final int TX_ENTRY = 0, PAGE_ENTRY = 1;
+
+   private long beginLSN;
+   private boolean last;
+   private Collection<Integer> txs = new ArrayList<Integer>();
+   private Map<Block,Long> dirtyPages = new HashMap<Block,Long>();
+
+   /**
+    * Creates a log record by reading the begin LSN,
+    * the last-part flag, and then the entries
+    * of the transactions and dirty pages, until the end
+    * of the basic log record.
+    * @param rec the basic log record
+    */
+   public NQCheckpointRecord(BasicLogRecord rec) {
+      beginLSN = rec.nextLong();
+      last = rec.nextInt() != 0;
+      while (rec.hasMore()) {
+         if (rec.nextInt() == TX_ENTRY)
+            txs.add(rec.nextInt());
+         else {
+            Block blk = new Block(rec.nextString(), rec.nextInt());
+            dirtyPages.put(blk, rec.nextLong());
+         }
+      }
+   }
+
+   /**
+    * Creates a checkpoint record holding the whole checkpoint.
+    * @param beginLSN the end of the log when the checkpoint began
+    * @param txs the ids of the active transactions
+    * @param dirtyPages the dirty page table
+    */
+   public NQCheckpointRecord(long beginLSN, Collection<Integer> txs,
+                             Map<Block,Long> dirtyPages) {
+      this.beginLSN = beginLSN;
+      this.last = true;
+      this.txs = txs;
+      this.dirtyPages = dirtyPages;
+   }
+
+   /**
+    * Writes the checkpoint to the log, as one or more NQCKPT records.
+    * Each record contains the NQCKPT operator, the begin LSN,
+    * the last-part flag, and as many entries as fit in it.
+    * The final part has no entries, so that the flag can be set
+    * once the entries have been written.
+    * @return the LSN of the last record of the checkpoint
+    */
+   public long writeToLog() {
+      int max = logMgr.maxRecordSize();
+      LogBuffer rec = startPart(beginLSN, false);
+      for (int txnum : txs) {
+         if (rec.size() + 11 > max) {
+            logMgr.append(rec);
+            rec = startPart(beginLSN, false);
+         }
+         rec.putInt(TX_ENTRY).putInt(txnum);
+      }
+      for (Map.Entry<Block,Long> e : dirtyPages.entrySet()) {
+         Block blk = e.getKey();
+         if (rec.size() + 26 + 3*blk.fileName().length() > max) {
+            logMgr.append(rec);
+            rec = startPart(beginLSN, false);
+         }
+         rec.putInt(PAGE_ENTRY).putString(blk.fileName())
+            .putInt(blk.number()).putLong(e.getValue());
+      }
+      logMgr.append(rec);
+      return logMgr.append(startPart(beginLSN, true));
+   }
+
+   private static LogBuffer startPart(long beginLSN, boolean last) {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(NQCKPT).putLong(beginLSN).putInt(last ? 1 : 0);
+      return rec;
+   }
+
+   public int op() {
+      return NQCKPT;
+   }
+
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Returns the end of the log when the checkpoint began.
+    * @return the begin LSN of the checkpoint
+    */
+   public long beginLSN() {
+      return beginLSN;
+   }
+
+   /**
+    * Returns true if this is the last record of its checkpoint.
+    * @return true if the record ends the checkpoint
+    */
+   public boolean isLast() {
+      return last;
+   }
+
+   /**
+    * Returns the transactions active when the checkpoint began
+    * that are listed in this record.
+    * @return the ids of the active transactions
+    */
+   public Collection<Integer> activeTxs() {
+      return txs;
+   }
+
+   /**
+    * Returns the entries of the dirty page table listed in this record.
+    * @return the dirty pages and their recovery LSNs
+    */
+   public Map<Block,Long> dirtyPages() {
+      return dirtyPages;
+   }
+
+   public Block block() {
+      return null;
+   }
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum, long lsn) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+
+   public String toString() {
+      return "<NQCKPT " + beginLSN + " " + txs + " " + dirtyPages + (last ? " last>" : ">");
+   }
+}
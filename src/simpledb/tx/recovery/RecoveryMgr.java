@@ -3,54 +3,133 @@ package simpledb.tx.recovery;
 import static simpledb.tx.recovery.LogRecord.*;
 import simpledb.file.Block;
 import simpledb.buffer.Buffer;
+import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * <P>
+ * Recovery follows the ARIES algorithm.
+ * Each update is logged with both its old and new values.
+ * A modified page may be written to disk before its transaction
+ * commits, as long as its log records are written first,
+ * and a committing transaction waits only for its commit record
+ * to reach the disk, never for its pages.
+ * Recovery therefore has three passes: an analysis pass that finds the
+ * unfinished transactions and the pages that may not be on disk,
+ * a redo pass that repeats the logged updates of those pages,
+ * and an undo pass that rolls back the unfinished transactions.
+ * An undo, during recovery or rollback, is itself logged by a
+ * compensation record, which is redone but never undone.
+ * <P>
+ * The class also keeps the table of active transactions,
+ * which maps each transaction to the LSN of its START record.
+ * The table is used by non-quiescent checkpoints, which are
+ * taken periodically by a {@link Checkpointer} while
+ * transactions continue to run.
+ * After a checkpoint, the log segments before the oldest
+ * record that recovery could need are deleted.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   private static Map<Integer,Long> activeTxs = new ConcurrentHashMap<Integer,Long>();
+
    private int txnum;
+   private long startLSN;
 
    /**
-    * Creates a recovery manager for the specified transaction.
+    * Creates a recovery manager for the specified transaction,
+    * and adds the transaction to the active transactions.
     * @param txnum the ID of the specified transaction
     */
    public RecoveryMgr(int txnum) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      startLSN = new StartRecord(txnum).writeToLog();
+      activeTxs.put(txnum, startLSN);
    }
 
    /**
-    * Writes a commit record to the log, and flushes it to disk.
+    * Writes a commit record to the log, and flushes it to disk
+    * together with the commit records of concurrent transactions.
+    * The transaction's modified pages are written later,
+    * by the buffer manager.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      long lsn = new CommitRecord(txnum).writeToLog();
+      activeTxs.remove(txnum);
+      SimpleDB.logMgr().flushCommit(lsn);
    }
 
    /**
-    * Writes a rollback record to the log, and flushes it to disk.
+    * Rolls back the transaction,
+    * then writes a rollback record to the log, and flushes it to disk.
     */
    public void rollback() {
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      long lsn = new RollbackRecord(txnum).writeToLog();
+      activeTxs.remove(txnum);
+      SimpleDB.logMgr().flushCommit(lsn);
    }
 
    /**
-    * Recovers uncompleted transactions from the log,
-    * then writes a quiescent checkpoint record to the log and flushes it.
+    * Recovers the database from the log,
+    * then writes the recovered pages to disk and forces them,
+    * and writes a quiescent checkpoint record to the log and flushes it.
+    * The log before the checkpoint record is no longer needed,
+    * and is truncated.
     */
    public void recover() {
       doRecover();
       SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      SimpleDB.fileMgr().forceAll();
+      long lsn = new CheckpointRecord().writeToLog();
       SimpleDB.logMgr().flush(lsn);
+      SimpleDB.logMgr().truncate(lsn);
+   }
 
+   /**
+    * Takes a non-quiescent checkpoint.
+    * The method notes the end of the log, and then
+    * writes the active transactions and the dirty page table
+    * to the log, without waiting for the transactions to finish.
+    * The database files are forced before the checkpoint is written,
+    * so that the pages written before the dirty page table was taken,
+    * which the table does not list, are on disk before recovery
+    * can rely on the checkpoint.
+    * Once the checkpoint is on disk,
+    * the log is truncated before the earliest of the
+    * beginning of the checkpoint, the START record of the oldest
+    * active transaction, and the oldest recovery LSN of a dirty page.
+    * <P>
+    * A transaction that starts during the checkpoint
+    * may not be listed, but all of its updates then follow
+    * the beginning of the checkpoint, and so will be seen by recovery.
+    */
+   public static void checkpoint() {
+      LogMgr logMgr = SimpleDB.logMgr();
+      long beginLSN = logMgr.currentLSN();
+      Map<Integer,Long> txs = new HashMap<Integer,Long>(activeTxs);
+      Map<Block,Long> dirtyPages = SimpleDB.bufferMgr().dirtyPageTable();
+      SimpleDB.fileMgr().forceAll();
+      long lsn = new NQCheckpointRecord(beginLSN, txs.keySet(), dirtyPages).writeToLog();
+      logMgr.flush(lsn);
+      long lowWater = beginLSN;
+      for (long start : txs.values())
+         lowWater = Math.min(lowWater, start);
+      for (long recLSN : dirtyPages.values())
+         lowWater = Math.min(lowWater, recLSN);
+      logMgr.truncate(lowWater);
+   }
+
+   /**
+    * Starts a background thread that takes
+    * a non-quiescent checkpoint at the specified interval.
+    * @param interval the milliseconds between checkpoints
+    */
+   public static void startCheckpointer(long interval) {
+      new Checkpointer(interval).start();
    }
 
    /**
@@ -61,13 +140,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+         return new SetIntRecord(txnum, blk, offset, oldval, newval).writeToLog();
    }
 
    /**
@@ -78,56 +157,175 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+         return new SetStringRecord(txnum, blk, offset, oldval, newval).writeToLog();
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
+    * The method iterates through the transaction's log records,
+    * calling undo() for each one,
     * until it finds the transaction's START record.
+    * The records of other transactions are skipped undecoded.
     */
    private void doRollback() {
-      Iterator<LogRecord> iter = new LogRecordIterator();
+      LogRecordIterator iter = new LogRecordIterator(txnum);
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(txnum);
-         }
+         if (rec.op() == START)
+            return;
+         rec.undo(txnum, iter.lsn());
       }
    }
 
    /**
-    * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
+    * Does a complete database recovery, in three passes.
+    * The records of this recovery manager's own transaction,
+    * which follow its START record, are ignored by each pass.
+    */
+   private void doRecover() {
+      Collection<Integer> losers = new HashSet<Integer>();
+      Map<Block,Long> dirtyPages = new HashMap<Block,Long>();
+      analyze(losers, dirtyPages);
+      redo(dirtyPages);
+      undo(losers);
+   }
+
+   /**
+    * The analysis pass of recovery.
+    * The method iterates backwards through the log records,
+    * collecting the unfinished transactions, and the pages
+    * that they and the finished transactions modified,
+    * each with the LSN of its earliest modification.
     * The method stops when it encounters a CHECKPOINT record
     * or the end of the log.
+    * <P>
+    * It also stops once it has passed the beginning of the
+    * most recent complete non-quiescent checkpoint, and has
+    * found the START records of the unfinished transactions
+    * that the checkpoint lists.
+    * The dirty page table of the checkpoint is added to the pages.
+    * The records of an incomplete checkpoint are ignored.
+    * @param losers the unfinished transactions
+    * @param dirtyPages the modified pages and their recovery LSNs
     */
-   private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
+   private void analyze(Collection<Integer> losers, Map<Block,Long> dirtyPages) {
+      Collection<Integer> finishedTxs = new HashSet<Integer>();
+      Collection<Integer> unstarted = new HashSet<Integer>();
+      long beginLSN = -1;  // the beginning of the checkpoint, once found
+      LogRecordIterator iter = new LogRecordIterator();
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
+         long lsn = iter.lsn();
+         if (lsn >= startLSN)
+            continue;
          if (rec.op() == CHECKPOINT)
             return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+         if (beginLSN >= 0 && lsn <= beginLSN && unstarted.isEmpty())
+            return;
+         if (rec.op() == NQCKPT) {
+            NQCheckpointRecord ckpt = (NQCheckpointRecord) rec;
+            if (beginLSN < 0 && ckpt.isLast())
+               beginLSN = ckpt.beginLSN();
+            if (ckpt.beginLSN() == beginLSN) {
+               for (int tx : ckpt.activeTxs())
+                  if (!finishedTxs.contains(tx))
+                     unstarted.add(tx);
+               for (Map.Entry<Block,Long> e : ckpt.dirtyPages().entrySet())
+                  addDirtyPage(dirtyPages, e.getKey(), e.getValue());
+            }
+         }
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
             finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(txnum);
+         else {
+            if (rec.op() == START)
+               unstarted.remove(rec.txNumber());
+            if (!finishedTxs.contains(rec.txNumber()))
+               losers.add(rec.txNumber());
+            if (rec.block() != null)
+               addDirtyPage(dirtyPages, rec.block(), lsn);
+         }
+      }
+   }
+
+   /**
+    * The redo pass of recovery.
+    * The method iterates forward through the log records,
+    * starting at the smallest recovery LSN,
+    * and redoes each logged modification of a page
+    * that is not older than the page's recovery LSN.
+    * The redo of a modification writes the new value, and so
+    * repeating one that is already on disk does no harm.
+    * @param dirtyPages the modified pages and their recovery LSNs
+    */
+   private void redo(Map<Block,Long> dirtyPages) {
+      if (dirtyPages.isEmpty())
+         return;
+      LogRecordIterator iter = LogRecordIterator.forward(Collections.min(dirtyPages.values()));
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         long lsn = iter.lsn();
+         if (lsn >= startLSN)
+            return;
+         Block blk = rec.block();
+         if (blk == null)
+            continue;
+         Long recLSN = dirtyPages.get(blk);
+         if (recLSN != null && lsn >= recLSN)
+            rec.redo(txnum, lsn);
       }
    }
 
+   /**
+    * The undo pass of recovery.
+    * The method iterates backwards through the log records,
+    * undoing the modifications of the unfinished transactions,
+    * until it has found the START record of each of them.
+    * A modification that follows the record undone by a
+    * compensation record was undone before the crash,
+    * and is skipped.
+    * A rollback record is then written for each transaction.
+    * @param losers the unfinished transactions
+    */
+   private void undo(Collection<Integer> losers) {
+      Collection<Integer> unstarted = new HashSet<Integer>(losers);
+      Map<Integer,Long> undoneFrom = new HashMap<Integer,Long>();
+      LogRecordIterator iter = new LogRecordIterator();
+      while (!unstarted.isEmpty() && iter.hasNext()) {
+         LogRecord rec = iter.next();
+         long lsn = iter.lsn();
+         int tx = rec.txNumber();
+         if (lsn >= startLSN || !losers.contains(tx))
+            continue;
+         if (rec.op() == START)
+            unstarted.remove(tx);
+         else if (rec.op() == COMPENSATION) {
+            long undone = ((CompensationRecord) rec).undoneLSN();
+            Long from = undoneFrom.get(tx);
+            if (from == null || undone < from)
+               undoneFrom.put(tx, undone);
+         }
+         else {
+            Long from = undoneFrom.get(tx);
+            if (from == null || lsn < from)
+               rec.undo(txnum, lsn);
+         }
+      }
+      for (int tx : losers)
+         new RollbackRecord(tx).writeToLog();
+   }
+
+   private void addDirtyPage(Map<Block,Long> dirtyPages, Block blk, long lsn) {
+      Long recLSN = dirtyPages.get(blk);
+      if (recLSN == null || lsn < recLSN)
+         dirtyPages.put(blk, lsn);
+   }
+
    /**
     * Determines whether a block comes from a temporary file or not.
     */
@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
-import simpledb.log.BasicLogRecord;
+import simpledb.file.Block;
+import simpledb.log.LogBuffer;
 
 /**
  * The ROLLBACK log record.
@@ -17,22 +18,15 @@ class RollbackRecord implements LogRecord {
       this.txnum = txnum;
    }
    
-   /**
-    * Creates a log record by reading one other value from the log.
-    * @param rec the basic log record
-    */
-   public RollbackRecord(BasicLogRecord rec) {
-      txnum = rec.nextInt();
-   }
-   
    /** 
     * Writes a rollback record to the log.
     * This log record contains the ROLLBACK operator,
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {ROLLBACK, txnum};
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(ROLLBACK).putInt(txnum);
       return logMgr.append(rec);
    }
    
@@ -44,11 +38,21 @@ class RollbackRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a rollback record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a rollback record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
    
    public String toString() {
       return "<ROLLBACK " + txnum + ">";
@@ -4,9 +4,10 @@ import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset, oldval, newval;
    private Block blk;
 
    /**
@@ -14,39 +15,45 @@ class SetIntRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the modification
+    * @param newval the value after the modification
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, Block blk, int offset, int oldval, int newval) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
 
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record for the specified transaction
+    * by reading five other values from the log.
+    * @param txnum the ID of the transaction, already read from the log
     * @param rec the basic log record
     */
-   public SetIntRecord(BasicLogRecord rec) {
-      txnum = rec.nextInt();
+   public SetIntRecord(int txnum, BasicLogRecord rec) {
+      this.txnum = txnum;
       String filename = rec.nextString();
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextInt();
+      oldval = rec.nextInt();
+      newval = rec.nextInt();
    }
 
-   /**
+   /** 
     * Writes a setInt record to the log.
     * This log record contains the SETINT operator,
     * followed by the transaction id, the filename, number,
     * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and new integer values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(SETINT).putInt(txnum).putString(blk.fileName())
+         .putInt(blk.number()).putInt(offset).putInt(oldval).putInt(newval);
       return logMgr.append(rec);
    }
 
@@ -58,21 +65,46 @@ class SetIntRecord implements LogRecord {
       return txnum;
    }
 
+   public Block block() {
+      return blk;
+   }
+
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
 
-   /**
+   /** 
     * Replaces the specified data value with the value saved in the log record.
     * The method pins a buffer to the specified block,
+    * writes a compensation record for the undo,
     * calls setInt to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
-    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    * (using the LSN of the compensation record), and unpins the buffer.
+    * The record is written and the value restored while holding
+    * the buffer's lock, as for any other change.
+    * @see simpledb.tx.recovery.LogRecord#undo(int, long)
+    */
+   public void undo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         long clr = new CompensationRecord(this.txnum, lsn, blk, offset, oldval).writeToLog();
+         buff.setInt(offset, oldval, txnum, clr);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /** 
+    * Replaces the specified data value with the new value
+    * saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setInt to write the new value
+    * (using the LSN of this record), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
     */
-   public void undo(int txnum) {
+   public void redo(int txnum, long lsn) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
+      buff.setInt(offset, newval, txnum, lsn);
       buffMgr.unpin(buff);
    }
 }
@@ -4,10 +4,11 @@ import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 class SetStringRecord implements LogRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
    
    /**
@@ -15,26 +16,31 @@ class SetStringRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the modification
+    * @param newval the value after the modification
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, Block blk, int offset, String oldval, String newval) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
    
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record for the specified transaction
+    * by reading five other values from the log.
+    * @param txnum the ID of the transaction, already read from the log
     * @param rec the basic log record
     */
-   public SetStringRecord(BasicLogRecord rec) {
-      txnum = rec.nextInt();
+   public SetStringRecord(int txnum, BasicLogRecord rec) {
+      this.txnum = txnum;
       String filename = rec.nextString();
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
    }
    
    /** 
@@ -42,12 +48,13 @@ class SetStringRecord implements LogRecord {
     * This log record contains the SETSTRING operator,
     * followed by the transaction id, the filename, number,
     * and offset of the modified block, and the previous
-    * string value at that offset.
+    * and new string values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(SETSTRING).putInt(txnum).putString(blk.fileName())
+         .putInt(blk.number()).putInt(offset).putString(oldval).putString(newval);
       return logMgr.append(rec);
    }
    
@@ -59,21 +66,46 @@ class SetStringRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return blk;
+   }
+   
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
    
    /** 
     * Replaces the specified data value with the value saved in the log record.
     * The method pins a buffer to the specified block,
+    * writes a compensation record for the undo,
     * calls setString to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
-    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    * (using the LSN of the compensation record), and unpins the buffer.
+    * The record is written and the value restored while holding
+    * the buffer's lock, as for any other change.
+    * @see simpledb.tx.recovery.LogRecord#undo(int, long)
+    */
+   public void undo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         long clr = new CompensationRecord(this.txnum, lsn, blk, offset, oldval).writeToLog();
+         buff.setString(offset, oldval, txnum, clr);
+      }
+      buffMgr.unpin(buff);
+   }
+   
+   /** 
+    * Replaces the specified data value with the new value
+    * saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setString to write the new value
+    * (using the LSN of this record), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
     */
-   public void undo(int txnum) {
+   public void redo(int txnum, long lsn) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      buff.setString(offset, newval, txnum, lsn);
       buffMgr.unpin(buff);
    }
 }
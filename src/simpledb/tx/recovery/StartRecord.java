@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
-import simpledb.log.BasicLogRecord;
+import simpledb.file.Block;
+import simpledb.log.LogBuffer;
 
 class StartRecord implements LogRecord {
    private int txnum;
@@ -13,22 +14,15 @@ class StartRecord implements LogRecord {
       this.txnum = txnum;
    }
    
-   /**
-    * Creates a log record by reading one other value from the log.
-    * @param rec the basic log record
-    */
-   public StartRecord(BasicLogRecord rec) {
-      txnum = rec.nextInt();
-   }
-   
    /** 
     * Writes a start record to the log.
     * This log record contains the START operator,
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {START, txnum};
+   public long writeToLog() {
+      LogBuffer rec = LogBuffer.forThread();
+      rec.putInt(START).putInt(txnum);
       return logMgr.append(rec);
    }
    
@@ -40,11 +34,21 @@ class StartRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a start record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
    
    public String toString() {
       return "<START " + txnum + ">";
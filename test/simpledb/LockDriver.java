@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.util.*;
+import simpledb.file.Block;
+import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.concurrency.LockAbortException;
+
+/**
+ * A driver that checks the lock table with several threads.
+ * Each thread plays a transaction that requests a lock,
+ * and records whether the lock was granted or the
+ * transaction was aborted.
+ * The driver checks that waiting requests are granted in FIFO order,
+ * that two transactions upgrading a shared lock on the same block
+ * deadlock and the younger one is aborted,
+ * that the victim of a deadlock is the youngest transaction even when
+ * an older one closes the cycle,
+ * and that a transaction interrupted while waiting is aborted.
+ * <P>
+ * The driver needs no database or server.
+ * It prints each failed check, and "ALL OK" if there are none.
+ * It lives in the test tree, and is compiled against
+ * the classes of the source tree.
+ */
+public class LockDriver {
+   private static final long TIMEOUT = 5000;  // milliseconds
+
+   private static List<String> events = Collections.synchronizedList(new ArrayList<String>());
+   private static int failures = 0;
+
+   public static void main(String[] args) throws InterruptedException {
+      fifoHandoff();
+      upgradeDeadlock();
+      youngestVictim();
+      interruptedWait();
+      if (failures == 0)
+         System.out.println("ALL OK");
+      else
+         System.out.println(failures + " checks failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   /**
+    * A shared lock is held and an exclusive request waits for it.
+    * A later shared request must wait behind the exclusive one,
+    * although it is compatible with the held lock,
+    * and is granted only once the exclusive lock is released.
+    */
+   private static void fifoHandoff() throws InterruptedException {
+      events.clear();
+      Block blk = new Block("lockdriver", 1);
+      ConcurrencyMgr tx1 = new ConcurrencyMgr(1);
+      ConcurrencyMgr tx2 = new ConcurrencyMgr(2);
+      ConcurrencyMgr tx3 = new ConcurrencyMgr(3);
+      tx1.sLock(blk);
+      Thread t2 = request("tx2", tx2, blk, true);
+      awaitBlocked(t2);
+      Thread t3 = request("tx3", tx3, blk, false);
+      awaitBlocked(t3);
+      check(events.isEmpty(), "fifo: a shared request waits behind an exclusive one");
+      tx1.release();
+      t2.join(TIMEOUT);
+      awaitBlocked(t3);
+      check(events.equals(Arrays.asList("tx2 granted")),
+            "fifo: the exclusive request is granted first " + events);
+      tx2.release();
+      t3.join(TIMEOUT);
+      check(events.equals(Arrays.asList("tx2 granted", "tx3 granted")),
+            "fifo: the shared request is granted next " + events);
+      tx3.release();
+   }
+
+   /**
+    * Two transactions hold a shared lock, and both ask to upgrade it.
+    * The younger is aborted, and the older then gets its exclusive lock.
+    */
+   private static void upgradeDeadlock() throws InterruptedException {
+      events.clear();
+      Block blk = new Block("lockdriver", 2);
+      ConcurrencyMgr tx4 = new ConcurrencyMgr(4);
+      ConcurrencyMgr tx5 = new ConcurrencyMgr(5);
+      tx4.sLock(blk);
+      tx5.sLock(blk);
+      Thread t4 = request("tx4", tx4, blk, true);
+      awaitBlocked(t4);
+      Thread t5 = request("tx5", tx5, blk, true);
+      t5.join(TIMEOUT);
+      t4.join(TIMEOUT);
+      check(events.equals(Arrays.asList("tx5 aborted", "tx4 granted")),
+            "upgrade: the younger transaction is aborted " + events);
+      tx4.release();
+   }
+
+   /**
+    * The younger transaction waits first, and the older one
+    * then closes the cycle.
+    * The younger transaction is still the victim: its waiting request
+    * is aborted, and the older one gets its lock.
+    */
+   private static void youngestVictim() throws InterruptedException {
+      events.clear();
+      Block a = new Block("lockdriver", 3);
+      Block b = new Block("lockdriver", 4);
+      ConcurrencyMgr tx6 = new ConcurrencyMgr(6);
+      ConcurrencyMgr tx7 = new ConcurrencyMgr(7);
+      tx6.xLock(a);
+      tx7.xLock(b);
+      Thread t7 = request("tx7", tx7, a, true);
+      awaitBlocked(t7);
+      Thread t6 = request("tx6", tx6, b, true);
+      t7.join(TIMEOUT);
+      t6.join(TIMEOUT);
+      check(events.equals(Arrays.asList("tx7 aborted", "tx6 granted")),
+            "victim: the younger waiting transaction is aborted " + events);
+      tx6.release();
+   }
+
+   /**
+    * A transaction interrupted while waiting is aborted,
+    * and its request no longer holds up later requests.
+    */
+   private static void interruptedWait() throws InterruptedException {
+      events.clear();
+      Block blk = new Block("lockdriver", 5);
+      ConcurrencyMgr tx8 = new ConcurrencyMgr(8);
+      ConcurrencyMgr tx9 = new ConcurrencyMgr(9);
+      ConcurrencyMgr tx10 = new ConcurrencyMgr(10);
+      tx8.sLock(blk);
+      Thread t9 = request("tx9", tx9, blk, true);
+      awaitBlocked(t9);
+      t9.interrupt();
+      t9.join(TIMEOUT);
+      Thread t10 = request("tx10", tx10, blk, false);
+      t10.join(TIMEOUT);
+      check(events.equals(Arrays.asList("tx9 aborted", "tx10 granted")),
+            "interrupt: the waiting transaction is aborted " + events);
+      tx8.release();
+      tx10.release();
+   }
+
+   /**
+    * Starts a thread that requests a lock on the block for the
+    * transaction, and records the outcome.
+    * An aborted transaction releases its locks, as a rollback would.
+    */
+   private static Thread request(final String name, final ConcurrencyMgr tx,
+                                 final Block blk, final boolean exclusive) {
+      Thread t = new Thread(name) {
+         public void run() {
+            try {
+               if (exclusive)
+                  tx.xLock(blk);
+               else
+                  tx.sLock(blk);
+               events.add(name + " granted");
+            }
+            catch(LockAbortException e) {
+               events.add(name + " aborted");
+               tx.release();
+            }
+         }
+      };
+      t.start();
+      return t;
+   }
+
+   /**
+    * Waits until the thread is waiting for its lock, or has finished.
+    */
+   private static void awaitBlocked(Thread t) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (t.getState() != Thread.State.WAITING && t.isAlive()
+             && System.currentTimeMillis() < deadline)
+         Thread.sleep(10);
+   }
+
+   private static void check(boolean ok, String what) {
+      if (!ok) {
+         System.out.println("FAIL " + what);
+         failures++;
+      }
+   }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import simpledb.query.TableScan;
+import simpledb.record.TableInfo;
+import simpledb.server.SimpleDB;
+import simpledb.tx.Transaction;
+import simpledb.tx.concurrency.ConcurrencyMgr;
+
+/**
+ * A driver that checks the lock escalation of a table scan.
+ * The driver creates a table in a new database, and scans it
+ * in a transaction that locks each record it reads.
+ * It checks that the record locks count towards the escalation,
+ * so that the transaction never holds many more locks on the table
+ * than the escalation threshold, and that at the end of the scan
+ * the transaction holds a single S lock on the table's file.
+ * It then deletes half of the records, and checks that a scan
+ * keeps no locks on the slots that it finds empty.
+ * <P>
+ * The driver looks at the locks of the transaction by reflection,
+ * since the concurrency manager does not expose them.
+ * It prints each failed check, and "ALL OK" if there are none.
+ * It lives in the test tree, and is compiled against
+ * the classes of the source tree.
+ */
+public class ScanLockDriver {
+   private static final int RECORDS = 1000;
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      SimpleDB.BLOCK_SIZE = 400;
+      SimpleDB.SNAPSHOT_READS = false;
+      SimpleDB.init("scanlockdriver" + System.currentTimeMillis());
+      Transaction tx = new Transaction();
+      SimpleDB.planner().executeUpdate("create table scanned (a int, b varchar(8))", tx);
+      for (int i = 0; i < RECORDS; i++)
+         SimpleDB.planner().executeUpdate("insert into scanned (a, b) values ("
+                                          + i + ", 'rec')", tx);
+      tx.commit();
+
+      tx = new Transaction();
+      TableInfo ti = SimpleDB.mdMgr().getTableInfo("scanned", tx);
+      tx.commit();
+      fullScan(ti);
+      emptySlots(ti);
+
+      if (failures == 0)
+         System.out.println("ALL OK");
+      else
+         System.out.println(failures + " checks failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   /**
+    * Scans the whole table, and checks the locks of the transaction
+    * on the table's file after each record.
+    * Besides the parts that count towards the escalation,
+    * the transaction holds the intention lock on the file
+    * and the lock on its end-of-file marker.
+    */
+   private static void fullScan(TableInfo ti) throws Exception {
+      String filename = ti.fileName();
+      Transaction tx = new Transaction();
+      TableScan ts = new TableScan(ti, tx);
+      int count = 0;
+      int most = 0;
+      while (ts.next()) {
+         count++;
+         most = Math.max(most, locksOn(tx, filename).size());
+      }
+      ts.close();
+      Map<Object,Object> held = locksOn(tx, filename);
+      check(count == RECORDS, "scan: every record is read, got " + count);
+      check(most <= SimpleDB.LOCK_ESCALATION + 3,
+            "scan: the record locks are escalated, held up to " + most);
+      check(held.size() == 1 && "S".equals(String.valueOf(held.get(filename))),
+            "scan: the scan ends with one S lock on the file " + held);
+      tx.commit();
+   }
+
+   /**
+    * Deletes every other record, and scans the table with the
+    * escalation disabled.
+    * The scan must hold a record lock for each record it reads,
+    * and none for the deleted ones.
+    */
+   private static void emptySlots(TableInfo ti) throws Exception {
+      Transaction tx = new Transaction();
+      TableScan ts = new TableScan(ti, tx);
+      while (ts.next())
+         if (ts.getInt("a") % 2 == 1)
+            ts.delete();
+      ts.close();
+      tx.commit();
+
+      int escalation = SimpleDB.LOCK_ESCALATION;
+      SimpleDB.LOCK_ESCALATION = 0;
+      tx = new Transaction();
+      ts = new TableScan(ti, tx);
+      int count = 0;
+      while (ts.next())
+         count++;
+      ts.close();
+      int reclocks = 0;
+      for (Object item : locksOn(tx, ti.fileName()).keySet())
+         if (item.toString().contains("[record "))
+            reclocks++;
+      check(count == RECORDS / 2, "empty: the deleted records are skipped, got " + count);
+      check(reclocks == count,
+            "empty: only the records read are locked, " + reclocks + " locks");
+      tx.commit();
+      SimpleDB.LOCK_ESCALATION = escalation;
+   }
+
+   /**
+    * Returns the locks that the transaction holds on the file,
+    * and on its blocks and records.
+    */
+   private static Map<Object,Object> locksOn(Transaction tx, String filename)
+         throws Exception {
+      Field f = Transaction.class.getDeclaredField("concurMgr");
+      f.setAccessible(true);
+      ConcurrencyMgr cm = (ConcurrencyMgr) f.get(tx);
+      Field g = ConcurrencyMgr.class.getDeclaredField("locks");
+      g.setAccessible(true);
+      Map<?,?> locks = (Map<?,?>) g.get(cm);
+      Map<Object,Object> result = new HashMap<Object,Object>();
+      // blocks and records print as "[file name, block n]..."
+      String prefix = "[file " + filename + ",";
+      for (Map.Entry<?,?> e : locks.entrySet()) {
+         Object item = e.getKey();
+         if (filename.equals(item) || item.toString().startsWith(prefix))
+            result.put(item, e.getValue());
+      }
+      return result;
+   }
+
+   private static void check(boolean ok, String what) {
+      if (!ok) {
+         System.out.println("FAIL " + what);
+         failures++;
+      }
+   }
+}